@@ -0,0 +1,99 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+import twigkit.frame.CachedImageIOService;
+import twigkit.frame.Image;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link CachedImageIOService#fromURL(URL, boolean, java.util.Map, int, int)} when the resized image is
+ * already cached (warm) and when the cache has been emptied before every call (cold), plus streaming a warm entry
+ * without decoding it.
+ *
+ * @author mr.olafsson
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CacheBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cache {
+
+        @Param({"sample.jpg", "kodak.tif"})
+        public String image;
+
+        @Param({"200"})
+        public int width;
+
+        CachedImageIOService service;
+        URL url;
+        File repository;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            repository = new File(System.getProperty("java.io.tmpdir"), "frame-benchmark-" + System.nanoTime());
+
+            Properties properties = new Properties();
+            properties.setProperty(CachedImageIOService.SERVICES_IMAGES_OFFLINE_PATH, repository.getAbsolutePath());
+            properties.setProperty(CachedImageIOService.CACHE_NAME_PROPERTY, "frame-benchmark");
+            service = new CachedImageIOService(properties);
+            url = Images.url(image);
+
+            service.fromURL(url, true, null, width, 0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            service.getOrCreateCache().removeAll();
+            service.shutdownCacheManager();
+            FileUtils.deleteDirectory(repository);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class EmptyCache extends Cache {
+
+        @Setup(Level.Invocation)
+        public void empty() {
+            service.getOrCreateCache().removeAll();
+        }
+    }
+
+    @Benchmark
+    public Image warm(Cache cache) throws IOException {
+        return cache.service.fromURL(cache.url, true, null, cache.width, 0);
+    }
+
+    @Benchmark
+    public Image.ContentType warmStream(Cache cache) throws IOException {
+        return cache.service.streamTo(cache.url, cache.width, 0, new NullOutputStream());
+    }
+
+    @Benchmark
+    public Image cold(EmptyCache cache) throws IOException {
+        return cache.service.fromURL(cache.url, true, null, cache.width, 0);
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import twigkit.frame.Image;
+import twigkit.frame.ImageIOService;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link ImageIOService#fromURL(URL)} reading a local file, in full or subsampled for a target width.
+ *
+ * @author mr.olafsson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param({"sample.jpg", "sample.png", "kodak.tif"})
+    public String image;
+
+    /**
+     * Width the image is decoded for, 0 to decode in full.
+     */
+    @Param({"0", "200"})
+    public int width;
+
+    private ImageIOService service;
+    private URL url;
+
+    @Setup
+    public void setUp() throws IOException {
+        service = new ImageIOService();
+        url = Images.url(image);
+    }
+
+    @Benchmark
+    public Image fromURL() throws IOException {
+        return width > 0 ? service.fromURL(url, width, 0) : service.fromURL(url);
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.benchmark;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+import twigkit.frame.BasicImageIOService;
+import twigkit.frame.Image;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link BasicImageIOService#write} encoding a resized image to a stream.
+ *
+ * @author mr.olafsson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EncodeBenchmark {
+
+    @Param({"sample.jpg", "sample.png"})
+    public String image;
+
+    @Param({"200", "600"})
+    public int width;
+
+    @Param({"PNG", "JPEG"})
+    public Image.ContentType contentType;
+
+    private BasicImageIOService service;
+    private Image resized;
+
+    @Setup
+    public void setUp() throws Exception {
+        service = new BasicImageIOService();
+        resized = service.resize(service.fromURL(Images.url(image)), width, 0);
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        CountingOutputStream outputStream = new CountingOutputStream(new NullOutputStream());
+        service.write(resized, outputStream, contentType);
+        return outputStream.getByteCount();
+    }
+}
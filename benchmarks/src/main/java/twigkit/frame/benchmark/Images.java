@@ -0,0 +1,55 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.benchmark;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Locates the sample images in the test resources of the main module, set the <code>frame.resources</code> system
+ * property when running from elsewhere.
+ *
+ * @author mr.olafsson
+ */
+final class Images {
+
+    static final String RESOURCES = System.getProperty("frame.resources", "../src/test/resources");
+
+    private Images() {
+    }
+
+    static File file(String name) throws IOException {
+        File file = new File(RESOURCES, name);
+        if (!file.exists() && name.endsWith(".png")) {
+            // There is no PNG among the test resources, so one is converted from the JPEG of the same name
+            File jpeg = new File(RESOURCES, name.replace(".png", ".jpg"));
+            file = new File(System.getProperty("java.io.tmpdir"), "frame-benchmark-" + name);
+            if (!file.exists() && jpeg.exists()) {
+                ImageIO.write(ImageIO.read(jpeg), "png", file);
+            }
+        }
+
+        if (!file.exists()) {
+            throw new FileNotFoundException("Sample image not found: " + file.getAbsolutePath());
+        }
+        return file;
+    }
+
+    static URL url(String name) throws IOException {
+        return file(name).toURI().toURL();
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import twigkit.frame.BasicImageIOService;
+import twigkit.frame.Image;
+import twigkit.frame.resample.Resampling;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link BasicImageIOService#resize} from an already decoded image, for each resampling algorithm.
+ *
+ * @author mr.olafsson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResizeBenchmark {
+
+    @Param({"sample.jpg", "sample.png", "kodak.tif"})
+    public String image;
+
+    @Param({"100", "400"})
+    public int width;
+
+    @Param({"BILINEAR", "PROGRESSIVE", "AREA_AVERAGE", "LANCZOS", "PARALLEL_LANCZOS"})
+    public Resampling resampling;
+
+    private BasicImageIOService service;
+    private Image source;
+
+    @Setup
+    public void setUp() throws Exception {
+        service = new BasicImageIOService();
+        source = service.fromURL(Images.url(image));
+    }
+
+    @Benchmark
+    public Image resize() throws Exception {
+        return service.resize(source, width, 0, resampling);
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the operations of a {@link BasicImageService} on two executors, one for work that waits on the network or disk
+ * and one for CPU bound decoding, resizing and encoding, so that neither the calling thread nor the CPU pool block on
+ * slow origins.
+ * <p>
+ * Reading from a URL runs {@link ImageService#fetch(URL, int, int)} of the service on the I/O executor, and the task
+ * it returns on the CPU executor. A {@link CachedImageIOService} reads the repository or fetches the original in the
+ * first step, and decodes, resizes and writes to the cache in the second.
+ *
+ * @author mr.olafsson
+ */
+public class AsyncImageIOService implements AsyncBasicImageService {
+
+    /**
+     * Number of threads of the I/O pool created by default, beyond which requests queue.
+     */
+    public static final int DEFAULT_IO_THREADS = 32;
+
+    private final BasicImageService delegate;
+    private final Executor ioExecutor;
+    private final Executor cpuExecutor;
+    private final boolean ownsExecutors;
+
+    /**
+     * Wraps a {@link BasicImageIOService} with an I/O pool of {@link #DEFAULT_IO_THREADS} and a CPU pool of one thread
+     * per processor.
+     */
+    public AsyncImageIOService() {
+        this(new BasicImageIOService());
+    }
+
+    /**
+     * Wraps the given service with an I/O pool of {@link #DEFAULT_IO_THREADS} and a CPU pool of one thread per
+     * processor.
+     */
+    public AsyncImageIOService(BasicImageService delegate) {
+        this(delegate, ioThreads(DEFAULT_IO_THREADS),
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), threads("frame-cpu")), true);
+    }
+
+    /**
+     * @param delegate    Service doing the actual work
+     * @param ioExecutor  Runs work that waits on the network or disk
+     * @param cpuExecutor Runs decoding, resizing and encoding
+     */
+    public AsyncImageIOService(BasicImageService delegate, Executor ioExecutor, Executor cpuExecutor) {
+        this(delegate, ioExecutor, cpuExecutor, false);
+    }
+
+    private AsyncImageIOService(BasicImageService delegate, Executor ioExecutor, Executor cpuExecutor, boolean ownsExecutors) {
+        this.delegate = delegate;
+        this.ioExecutor = ioExecutor;
+        this.cpuExecutor = cpuExecutor;
+        this.ownsExecutors = ownsExecutors;
+    }
+
+    public CompletableFuture<Image> fromURL(URL url) {
+        return fromURL(url, 0, 0);
+    }
+
+    public CompletableFuture<Image> fromURL(final URL url, final int widthInPixels, final int heightInPixels) {
+        return supply(() -> delegate.fetch(url, widthInPixels, heightInPixels), ioExecutor)
+                .thenCompose(task -> supply(task::call, cpuExecutor));
+    }
+
+    /**
+     * Reads the stream on the I/O executor, as it may well be backed by a network connection, and decodes it on the
+     * CPU executor.
+     */
+    public CompletableFuture<Image> from(final InputStream inputStream) {
+        return supply(() -> IOUtils.toByteArray(inputStream), ioExecutor)
+                .thenCompose(bytes -> supply(() -> delegate.from(new ByteArrayInputStream(bytes)), cpuExecutor));
+    }
+
+    public CompletableFuture<Image> resize(final Image image, final int newWidthInPixels, final int newHeightInPixels) {
+        return supply(() -> delegate.resize(image, newWidthInPixels, newHeightInPixels), cpuExecutor);
+    }
+
+    public CompletableFuture<Void> write(final Image image, final OutputStream outputStream, final Image.ContentType contentType) {
+        return supply(() -> {
+            delegate.write(image, outputStream, contentType);
+            return null;
+        }, cpuExecutor);
+    }
+
+    public BasicImageService getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Shuts down the executors if they were created by this service.
+     */
+    public void shutdown() {
+        if (ownsExecutors) {
+            ((ExecutorService) ioExecutor).shutdown();
+            ((ExecutorService) cpuExecutor).shutdown();
+        }
+    }
+
+    private interface Task<T> {
+        T call() throws Exception;
+    }
+
+    private static <T> CompletableFuture<T> supply(final Task<T> task, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private static ExecutorService ioThreads(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threads("frame-io"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory threads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
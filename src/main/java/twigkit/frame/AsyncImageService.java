@@ -0,0 +1,35 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking counterpart of {@link ImageService}, failures complete the futures exceptionally.
+ *
+ * @author mr.olafsson
+ */
+public interface AsyncImageService {
+
+    CompletableFuture<Image> fromURL(URL url);
+
+    CompletableFuture<Image> fromURL(URL url, int widthInPixels, int heightInPixels);
+
+    CompletableFuture<Image> from(InputStream inputStream);
+
+    CompletableFuture<Void> write(Image image, OutputStream outputStream, Image.ContentType contentType);
+}
@@ -14,7 +14,12 @@
  */
 package twigkit.frame;
 
-import java.awt.*;
+import twigkit.frame.pipeline.Pipeline;
+import twigkit.frame.pipeline.PipelineExecutor;
+import twigkit.frame.resample.RasterPool;
+import twigkit.frame.resample.Resampler;
+import twigkit.frame.resample.Resampling;
+
 import java.awt.image.BufferedImage;
 
 /**
@@ -22,24 +27,20 @@ import java.awt.image.BufferedImage;
  */
 public class BasicImageIOService extends ImageIOService implements BasicImageService {
 
+	private Resampler resampler = Resampling.BILINEAR;
+	private RasterPool rasterPool;
+
 	public Image resize(Image image, int newWidthInPixels, int newHeightInPixels) throws Exception {
+		return resize(image, newWidthInPixels, newHeightInPixels, resampler);
+	}
+
+	public Image resize(Image image, int newWidthInPixels, int newHeightInPixels, Resampler resampler) throws Exception {
         int calcWidth = newWidthInPixels > 0 ? newWidthInPixels : (newHeightInPixels * image.getWidth() / image.getHeight());
         int calcHeight = newHeightInPixels > 0 ? newHeightInPixels : (newWidthInPixels * image.getHeight() / image.getWidth());
 
-        int type = image.getBufferedImage().getType();
-        if (type == BufferedImage.TYPE_CUSTOM) {
-            // PNG images have a custom type, this will preserve alpha channel
-            type = BufferedImage.TYPE_4BYTE_ABGR;
-        }
-
-        BufferedImage scaledBI = new BufferedImage(calcWidth, calcHeight, type);
-        Graphics2D g = scaledBI.createGraphics();
-//        g.clearRect(0, 0, calcWidth, calcHeight);
-        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-        g.setComposite(AlphaComposite.Src);
+        // PNG images have a custom type, this will preserve alpha channel
+        int type = Resampling.getDestinationType(image.getBufferedImage());
+        BufferedImage scaledBI = rasterPool != null ? rasterPool.acquire(type, calcWidth, calcHeight) : new BufferedImage(calcWidth, calcHeight, type);
 
         BufferedImage source = image.getBufferedImage();
 
@@ -56,9 +57,41 @@ public class BasicImageIOService extends ImageIOService implements BasicImageSer
             source = image.getBufferedImage().getSubimage(left, top, width, height);
         }
 
-        g.drawImage(source, 0, 0, calcWidth, calcHeight, null);
-        g.dispose();
+        resampler.resample(source, scaledBI);
 
-        return new twigkit.frame.Image(scaledBI);
+        return rasterPool != null ? new twigkit.frame.Image(scaledBI, rasterPool) : new twigkit.frame.Image(scaledBI);
     }
+
+	public Resampler getResampler() {
+		return resampler;
+	}
+
+	/**
+	 * Applies the operations of the pipeline, fused into as few passes over the pixels as possible. Encoding is left
+	 * to the caller, see {@link Pipeline#getEncode()}.
+	 */
+	public Image process(Image image, Pipeline pipeline) throws Exception {
+		Image processed = new Image(new PipelineExecutor(resampler).execute(image.getBufferedImage(), pipeline));
+		processed.setUrl(image.getUrl());
+		return processed;
+	}
+
+	/**
+	 * Sets the resampler used when none is given, {@link Resampling#BILINEAR} by default.
+	 */
+	public void setResampler(Resampler resampler) {
+		this.resampler = resampler;
+	}
+
+	/**
+	 * Resizes into images from the pool, which callers hand back with {@link Image#release()} once done with the
+	 * result. Without a pool, every resize allocates a new image.
+	 */
+	public void setRasterPool(RasterPool rasterPool) {
+		this.rasterPool = rasterPool;
+	}
+
+	public RasterPool getRasterPool() {
+		return rasterPool;
+	}
 }
@@ -14,6 +14,11 @@
  */
 package twigkit.frame;
 
+import twigkit.frame.pipeline.Pipeline;
+import twigkit.frame.pipeline.PipelineExecutor;
+import twigkit.frame.resample.Resampler;
+import twigkit.frame.resample.Resampling;
+
 /**
  * @author mr.olafsson
  */
@@ -21,4 +26,21 @@ public interface BasicImageService extends ImageService {
 
 	Image resize(Image image, int newWidthInPixels, int newHeightInPixels) throws Exception;
 
+	/**
+	 * Resizes using the given resampler, e.g. one of {@link twigkit.frame.resample.Resampling}. By default the
+	 * resampler is ignored, for services with their own way of resizing.
+	 */
+	default Image resize(Image image, int newWidthInPixels, int newHeightInPixels, Resampler resampler) throws Exception {
+		return resize(image, newWidthInPixels, newHeightInPixels);
+	}
+
+	/**
+	 * Applies the crops, resizes and rotations of the pipeline, see {@link Pipeline}. By default resamples bilinearly.
+	 */
+	default Image process(Image image, Pipeline pipeline) throws Exception {
+		Image processed = new Image(new PipelineExecutor(Resampling.BILINEAR).execute(image.getBufferedImage(), pipeline));
+		processed.setUrl(image.getUrl());
+		return processed;
+	}
+
 }
@@ -9,8 +9,27 @@ import net.sf.ehcache.event.CacheEventListener;
  * @author a-flammarion
  */
 public class CacheEventListenerImpl implements CacheEventListener {
+
+    private final CachedImageIOService service;
+
+    public CacheEventListenerImpl() {
+        this(null);
+    }
+
+    /**
+     * @param service Deletes the files of the entries dropped from its repository, or null to delete any file
+     *                straight away
+     */
+    public CacheEventListenerImpl(CachedImageIOService service) {
+        this.service = service;
+    }
+
+    public CachedImageIOService getService() {
+        return service;
+    }
+
     public void notifyElementRemoved(Ehcache ehcache, Element element) throws CacheException {
-        CachedImageIOService.deleteFromRepository((String)element.getObjectKey());
+        remove((String) element.getObjectKey());
     }
 
     public void notifyElementPut(Ehcache ehcache, Element element) throws CacheException {
@@ -22,11 +41,15 @@ public class CacheEventListenerImpl implements CacheEventListener {
     }
 
     public void notifyElementExpired(Ehcache ehcache, Element element) {
-        CachedImageIOService.deleteFromRepository((String)element.getObjectKey());
+        if (service != null) {
+            service.expireFromRepository((String) element.getObjectKey());
+        } else {
+            CachedImageIOService.deleteFromRepository((String) element.getObjectKey());
+        }
     }
 
     public void notifyElementEvicted(Ehcache ehcache, Element element) {
-        CachedImageIOService.deleteFromRepository((String)element.getObjectKey());
+        remove((String) element.getObjectKey());
     }
 
     public void notifyRemoveAll(Ehcache ehcache) {
@@ -42,4 +65,12 @@ public class CacheEventListenerImpl implements CacheEventListener {
         //return super.clone();
         throw new CloneNotSupportedException();
     }
+
+    private void remove(String path) {
+        if (service != null) {
+            service.removeFromRepository(path);
+        } else {
+            CachedImageIOService.deleteFromRepository(path);
+        }
+    }
 }
@@ -17,20 +17,65 @@ import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.Status;
 import net.sf.ehcache.event.CacheEventListener;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import twigkit.frame.cache.CacheIndex;
+import twigkit.frame.cache.MemoryTier;
+import twigkit.frame.cache.RepositoryEvictor;
+import twigkit.frame.cache.RequestCoalescer;
+import twigkit.frame.cache.Validators;
+import twigkit.frame.cache.WriteBehind;
+import twigkit.frame.origin.HttpOriginFetcher;
+import twigkit.frame.origin.OriginResponse;
+import twigkit.frame.pipeline.Operation;
+import twigkit.frame.pipeline.Pipeline;
+import twigkit.frame.resample.RasterPool;
+import twigkit.frame.util.ByteBufferInputStream;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
+import java.awt.Dimension;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 /**
@@ -42,22 +87,134 @@ public class CachedImageIOService extends BasicImageIOService {
 
     public static final String WIDTH = "_w";
     public static final String HEIGHT = "_h";
+    public static final String PIPELINE = "_p";
     public static final String SERVICES_IMAGES_OFFLINE_PATH = "services.images.offline.path";
     public static final String CACHE_NAME_PROPERTY = "services.images.cache.name";
+    public static final String MEMORY_CACHE_SIZE_PROPERTY = "services.images.cache.memory.size";
+    public static final String MEMORY_CACHE_OFFHEAP_PROPERTY = "services.images.cache.memory.offheap";
+    public static final String WRITE_BEHIND_THREADS_PROPERTY = "services.images.cache.writebehind.threads";
+    public static final String WRITE_BEHIND_QUEUE_PROPERTY = "services.images.cache.writebehind.queue";
+    public static final String WRITE_BEHIND_POLICY_PROPERTY = "services.images.cache.writebehind.policy";
+    public static final int DEFAULT_WRITE_BEHIND_QUEUE = 100;
+    public static final String CACHE_FORMAT_PROPERTY = "services.images.cache.format";
+    public static final String CACHE_QUALITY_PROPERTY = "services.images.cache.quality";
+    public static final String SOURCE_FORMAT = "source";
+    public static final float DEFAULT_CACHE_QUALITY = 0.85f;
+    public static final String CACHE_INDEX_PROPERTY = "services.images.cache.index";
+    public static final String SHARD_LEVELS_PROPERTY = "services.images.cache.shard.levels";
+    public static final int MAX_SHARD_LEVELS = 4;
+    public static final String MAX_BYTES_PROPERTY = "services.images.cache.max.bytes";
+    public static final String MAX_STALENESS_PROPERTY = "services.images.cache.stale.seconds";
+    public static final String REVALIDATE_WINDOW_PROPERTY = "services.images.cache.revalidate.seconds";
+    public static final long DEFAULT_REVALIDATE_WINDOW = 24 * 60 * 60;
+    public static final String ORIGIN_CONNECT_TIMEOUT_PROPERTY = "services.images.origin.connect.timeout";
+    public static final String ORIGIN_READ_TIMEOUT_PROPERTY = "services.images.origin.read.timeout";
+    public static final String ORIGIN_MAX_BYTES_PROPERTY = "services.images.origin.max.bytes";
+    public static final String ORIGIN_MAX_CONNECTIONS_PROPERTY = "services.images.origin.max.connections";
+    public static final String RASTER_POOL_BYTES_PROPERTY = "services.images.raster.pool.bytes";
+    private static final int REFRESH_THREADS = 2;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Pattern DERIVATIVE_NAME = Pattern.compile("[0-9a-f]+(?:" + WIDTH + "(\\d+))?(?:" + HEIGHT + "(\\d+))?\\.\\w+");
     private String cacheName;
     private Ehcache cache;
-    private static CacheManager cacheManager;
+    private CacheManager cacheManager;
+    // Deletes the files of entries the cache drops from this service's repository
+    private CacheEventListenerImpl listener;
 
     private File repository;
+    private int shardLevels;
+
+    private Image.ContentType cacheFormat = Image.ContentType.PNG;
+    private float cacheQuality = DEFAULT_CACHE_QUALITY;
+    private boolean indexEnabled = true;
+    private CacheIndex index;
+    private long maxBytes;
+    private RepositoryEvictor evictor;
+    private ScheduledExecutorService cleaner;
+    private long maxStaleness;
+    private long revalidateWindow = DEFAULT_REVALIDATE_WINDOW;
+    private ExecutorService refresher;
+    private final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong resizedFromDerivatives = new AtomicLong();
+    private MemoryTier memoryTier;
+    private WriteBehind<Image> writeBehind;
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong diskMisses = new AtomicLong();
+
+    private final RequestCoalescer<Image> coalescer = new RequestCoalescer<Image>();
+    // Originals fetched from the origin ahead of the task decoding them, see fetch(URL, int, int)
+    private final ConcurrentMap<String, OriginResponse> fetched = new ConcurrentHashMap<String, OriginResponse>();
+    // Sources the origin last sent with Cache-Control no-store, nothing produced from them is written to the repository
+    private final Set<String> noStore = ConcurrentHashMap.newKeySet();
 
     public CachedImageIOService() {
         // Make sure you call setOfflinePath() and setCacheName();
     }
 
     public CachedImageIOService(Properties properties) {
+        String indexEnabled = properties.getProperty(CACHE_INDEX_PROPERTY);
+        if (indexEnabled != null && indexEnabled.length() > 0) {
+            this.indexEnabled = Boolean.parseBoolean(indexEnabled.trim());
+        }
+        String shardLevels = properties.getProperty(SHARD_LEVELS_PROPERTY);
+        if (shardLevels != null && shardLevels.length() > 0) {
+            setShardLevels(Integer.parseInt(shardLevels.trim()));
+        }
+        String maxBytes = properties.getProperty(MAX_BYTES_PROPERTY);
+        if (maxBytes != null && maxBytes.length() > 0) {
+            setMaxBytes(Long.parseLong(maxBytes.trim()));
+        }
+        String connectTimeout = properties.getProperty(ORIGIN_CONNECT_TIMEOUT_PROPERTY);
+        String readTimeout = properties.getProperty(ORIGIN_READ_TIMEOUT_PROPERTY);
+        String originMaxBytes = properties.getProperty(ORIGIN_MAX_BYTES_PROPERTY);
+        String maxConnections = properties.getProperty(ORIGIN_MAX_CONNECTIONS_PROPERTY);
+        if (connectTimeout != null || readTimeout != null || originMaxBytes != null || maxConnections != null) {
+            setOriginFetcher(new HttpOriginFetcher(
+                    connectTimeout != null ? Integer.parseInt(connectTimeout.trim()) : HttpOriginFetcher.DEFAULT_CONNECT_TIMEOUT,
+                    readTimeout != null ? Integer.parseInt(readTimeout.trim()) : HttpOriginFetcher.DEFAULT_READ_TIMEOUT,
+                    originMaxBytes != null ? Long.parseLong(originMaxBytes.trim()) : HttpOriginFetcher.DEFAULT_MAX_BYTES,
+                    maxConnections != null ? Integer.parseInt(maxConnections.trim()) : HttpOriginFetcher.DEFAULT_MAX_CONNECTIONS_PER_HOST));
+        }
+
+        String maxStaleness = properties.getProperty(MAX_STALENESS_PROPERTY);
+        if (maxStaleness != null && maxStaleness.length() > 0) {
+            setMaxStaleness(Long.parseLong(maxStaleness.trim()));
+        }
+        String revalidateWindow = properties.getProperty(REVALIDATE_WINDOW_PROPERTY);
+        if (revalidateWindow != null && revalidateWindow.length() > 0) {
+            setRevalidateWindow(Long.parseLong(revalidateWindow.trim()));
+        }
         setOfflinePath(properties.getProperty(SERVICES_IMAGES_OFFLINE_PATH));
         setCacheName(properties.getProperty(CACHE_NAME_PROPERTY));
 
+        String format = properties.getProperty(CACHE_FORMAT_PROPERTY);
+        if (format != null && format.length() > 0) {
+            setCacheFormat(SOURCE_FORMAT.equalsIgnoreCase(format.trim()) ? null : Image.ContentType.forSuffix(format.trim()));
+        }
+        String quality = properties.getProperty(CACHE_QUALITY_PROPERTY);
+        if (quality != null && quality.length() > 0) {
+            setCacheQuality(Float.parseFloat(quality.trim()));
+        }
+
+        String memoryCacheSize = properties.getProperty(MEMORY_CACHE_SIZE_PROPERTY);
+        if (memoryCacheSize != null && memoryCacheSize.length() > 0) {
+            setMemoryCache(Long.parseLong(memoryCacheSize.trim()), Boolean.parseBoolean(properties.getProperty(MEMORY_CACHE_OFFHEAP_PROPERTY)));
+        }
+
+        String rasterPoolBytes = properties.getProperty(RASTER_POOL_BYTES_PROPERTY);
+        if (rasterPoolBytes != null && rasterPoolBytes.length() > 0) {
+            setRasterPool(new RasterPool(Long.parseLong(rasterPoolBytes.trim())));
+        }
+
+        String writeBehindThreads = properties.getProperty(WRITE_BEHIND_THREADS_PROPERTY);
+        if (writeBehindThreads != null && writeBehindThreads.length() > 0) {
+            String queue = properties.getProperty(WRITE_BEHIND_QUEUE_PROPERTY);
+            String policy = properties.getProperty(WRITE_BEHIND_POLICY_PROPERTY);
+            setWriteBehind(Integer.parseInt(writeBehindThreads.trim()),
+                    queue != null && queue.length() > 0 ? Integer.parseInt(queue.trim()) : DEFAULT_WRITE_BEHIND_QUEUE,
+                    policy != null && policy.length() > 0 ? WriteBehind.Policy.valueOf(policy.trim().toUpperCase()) : WriteBehind.Policy.BLOCK);
+        }
     }
 
     public void setOfflinePath(String offlinePath) {
@@ -76,24 +233,370 @@ public class CachedImageIOService extends BasicImageIOService {
             }
 
             logger.info("CachedImageIOService offline path: " + repository.getAbsolutePath());
+            openRepository();
         } else {
             logger.info("CachedImageIOService disabled! An offline path must be specified!");
         }
     }
 
+    /**
+     * Spreads the offline repository over nested directories named after pairs of characters of the MD5, e.g.
+     * {@code ab/cd/abcd..._w200.png} for two levels, so that no single directory holds millions of files. Each level
+     * divides the files per directory by 256. Files already stored flat are moved as they are read, or all at once by
+     * {@link #migrateRepository()}.
+     *
+     * @param shardLevels Number of directory levels, 0 to store all files in the repository directory itself
+     */
+    public void setShardLevels(int shardLevels) {
+        if (shardLevels < 0 || shardLevels > MAX_SHARD_LEVELS) {
+            throw new IllegalArgumentException("Shard levels must be between 0 and " + MAX_SHARD_LEVELS + ", not " + shardLevels);
+        }
+        this.shardLevels = shardLevels;
+    }
+
+    public int getShardLevels() {
+        return shardLevels;
+    }
+
+    /**
+     * Moves every file stored directly in the repository directory into its shard and updates the cache, whilst the
+     * service keeps serving. Requests for files not moved yet still find them in the flat location.
+     *
+     * @return Number of files moved
+     */
+    public int migrateRepository() throws IOException {
+        if (shardLevels == 0 || repository == null || cache == null) {
+            return 0;
+        }
+
+        int moved = 0;
+        File[] files = repository.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && !file.getName().startsWith(CacheIndex.FILE_NAME) && !file.getName().endsWith(TEMP_SUFFIX)
+                        && rehome(file) != null) {
+                    moved++;
+                }
+            }
+        }
+        logger.info("CachedImageIOService moved {} files into shards of {}", moved, repository.getAbsolutePath());
+        return moved;
+    }
+
+    /**
+     * Limits the total size of the images in the offline repository, evicting the least recently used ones in the
+     * background once over. Sizes are taken from the index, which must be enabled.
+     *
+     * @param maxBytes Size of the repository in bytes, 0 for no limit
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        if (evictor != null) {
+            evictor.setMaxBytes(maxBytes);
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The evictor deleting the files the cache drops and keeping the repository within
+     * {@link #setMaxBytes(long)}, or null if not configured yet
+     */
+    public RepositoryEvictor getEvictor() {
+        return evictor;
+    }
+
+    /**
+     * Evicts and deletes files from the offline repository on the given executor, rather than on a thread of the
+     * service's own. Delayed deletes of files kept past expiry should be dropped when it is shut down, along with the
+     * service, so that the next start deletes them.
+     *
+     * @param cleaner Executor to use from when the repository is opened, once both the offline path and cache name
+     *                are set
+     */
+    public void setCleaner(ScheduledExecutorService cleaner) {
+        if (evictor != null) {
+            throw new IllegalStateException("Repository is open already, the cleaner must be set before");
+        }
+        this.cleaner = cleaner;
+    }
+
+    /**
+     * Refreshes stale images on the given executor, rather than on threads of the service's own. It is shut down
+     * along with the service.
+     *
+     * @see #setMaxStaleness(long)
+     */
+    public synchronized void setRefresher(ExecutorService refresher) {
+        this.refresher = refresher;
+    }
+
+    /**
+     * @return Total size of the images in the offline repository, or -1 if not known as the index is disabled
+     */
+    public long getRepositoryBytes() {
+        return index != null ? index.getBytes() : -1;
+    }
+
+    /**
+     * Serves an expired image straight from the repository whilst a single background refresh revalidates or fetches
+     * the original and replaces stale derivatives, rather than making the requester wait for the origin. Expired files
+     * are kept for the purpose, and served for up to the given number of seconds past their time to live. Older ones
+     * are deleted and fetched in the foreground as usual.
+     *
+     * @param maxStaleness Seconds past expiry an image may be served, 0 to always wait for the origin
+     */
+    public void setMaxStaleness(long maxStaleness) {
+        this.maxStaleness = maxStaleness;
+    }
+
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    /**
+     * Keeps the files of an original the origin sent validators with, and of its derivatives, for the given number of
+     * seconds past their time to live, so that a conditional request can confirm they are still current rather than
+     * fetching the original again. They are deleted once past it, or past the maximum staleness if longer.
+     *
+     * @param revalidateWindow Seconds past expiry files are kept for revalidation, 0 to delete them on expiry
+     */
+    public void setRevalidateWindow(long revalidateWindow) {
+        this.revalidateWindow = revalidateWindow;
+    }
+
+    public long getRevalidateWindow() {
+        return revalidateWindow;
+    }
+
+    /**
+     * @return Number of images resized from a larger cached derivative rather than from the original
+     */
+    public long getResizedFromDerivativeCount() {
+        return resizedFromDerivatives.get();
+    }
+
+    /**
+     * @return Number of expired images served whilst being refreshed
+     */
+    public long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    /**
+     * Sets the format images are stored in, PNG by default. JPEG is much faster to write and smaller for photographs,
+     * but drops any transparency.
+     *
+     * @param cacheFormat PNG or JPEG, or null to store JPEG sources as JPEG and everything else as PNG
+     */
+    public void setCacheFormat(Image.ContentType cacheFormat) {
+        if (cacheFormat != null && cacheFormat != Image.ContentType.PNG && cacheFormat != Image.ContentType.JPEG) {
+            throw new IllegalArgumentException("Images can only be cached as PNG or JPEG, not " + cacheFormat);
+        }
+        this.cacheFormat = cacheFormat;
+    }
+
+    /**
+     * @return The format images are stored in, null if the same as the source
+     */
+    public Image.ContentType getCacheFormat() {
+        return cacheFormat;
+    }
+
+    /**
+     * @param cacheQuality Compression quality between 0 and 1 when caching as JPEG
+     */
+    public void setCacheQuality(float cacheQuality) {
+        this.cacheQuality = cacheQuality;
+    }
+
+    public float getCacheQuality() {
+        return cacheQuality;
+    }
+
+    /**
+     * Keeps the encoded bytes of recently used images in memory, in front of the offline repository.
+     *
+     * @param maxBytes Total size of the images held in memory, 0 to disable
+     * @param offHeap  Whether to hold them outside the Java heap
+     */
+    public void setMemoryCache(long maxBytes, boolean offHeap) {
+        if (maxBytes > 0) {
+            memoryTier = new MemoryTier(maxBytes, offHeap);
+            logger.info("CachedImageIOService memory cache: " + maxBytes + " bytes" + (offHeap ? " off-heap" : ""));
+        } else {
+            memoryTier = null;
+        }
+    }
+
+    /**
+     * Encodes and writes images to the cache on background threads, returning them to the caller straight away.
+     * Queued writes are completed by {@link #shutdownCacheManager()}.
+     *
+     * @param threads   Number of threads writing to the cache, 0 to write on the requesting thread
+     * @param queueSize Number of writes that can wait for a thread
+     * @param policy    Whether to drop writes or block the requesting thread when the queue is full
+     */
+    public void setWriteBehind(int threads, int queueSize, WriteBehind.Policy policy) {
+        if (threads > 0) {
+            writeBehind = new WriteBehind<Image>(threads, queueSize, policy);
+            logger.info("CachedImageIOService write-behind: " + threads + " threads, queue of " + queueSize + " (" + policy + ")");
+        } else {
+            writeBehind = null;
+        }
+    }
+
+    /**
+     * @return The write-behind queue, or null if writing on the requesting thread
+     */
+    public WriteBehind<Image> getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * @return The in-memory tier, or null if disabled
+     */
+    public MemoryTier getMemoryTier() {
+        return memoryTier;
+    }
+
+    /**
+     * @return Number of lookups that found the image in the offline repository
+     */
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    /**
+     * @return Number of lookups that did not find the image in the offline repository
+     */
+    public long getDiskMissCount() {
+        return diskMisses.get();
+    }
+
     public void setCacheName(String cacheName) {
         if (cacheName != null && !cacheName.isEmpty()) {
             this.cacheName = cacheName;
-            createCacheManager();
-            cache = getOrCreateCache();
+            //Registered before another service can shut the cache manager down, as it is no longer in use
+            synchronized (CachedImageIOService.class) {
+                createCacheManager();
+                cache = getOrCreateCache();
+                if (listener == null) {
+                    listener = new CacheEventListenerImpl(this);
+                    cache.getCacheEventNotificationService().registerListener(listener);
+                }
+            }
+            openRepository();
+        }
+    }
+
+    /**
+     * Keeps a persistent index of the images in the offline repository, enabled by default. The index is replayed
+     * into the cache when both the offline path and cache name are set, so a restart does not orphan the repository.
+     * Must be set before either of them to take effect.
+     */
+    public void setIndexEnabled(boolean indexEnabled) {
+        this.indexEnabled = indexEnabled;
+    }
+
+    /**
+     * @return The index of the offline repository, or null if disabled or not configured yet
+     */
+    public CacheIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Opens the index of the repository, starts deleting the files the cache drops from it and warms the cache from
+     * the index, once both the offline path and cache name are set.
+     */
+    private void openRepository() {
+        if (repository == null || cache == null || evictor != null) {
+            return;
+        }
+
+        if (indexEnabled) {
+            try {
+                //Image headers are probed again once the cache would have expired them
+                index = new CacheIndex(new File(repository, CacheIndex.FILE_NAME), cache.getCacheConfiguration().getTimeToLiveSeconds() * 1000);
+            } catch (IOException e) {
+                logger.error("Failed to open cache index, continuing without", e);
+            }
+        }
+        if (maxBytes > 0 && index == null) {
+            logger.warn("CachedImageIOService can only limit the repository size with the index enabled");
+        }
+
+        ScheduledExecutorService cleaner = this.cleaner;
+        if (cleaner == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "frame-repository-cleaner");
+                thread.setDaemon(true);
+                return thread;
+            });
+            //Files kept past expiry are left for the next start to delete
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            cleaner = executor;
+        }
+        evictor = new RepositoryEvictor(index, maxBytes, cleaner, entry -> removeNow(getRepositoryFile(entry.getName())), file -> {
+            //Not if it was revalidated or written again meanwhile
+            Element element = cache.getQuiet(file.getAbsolutePath());
+            return element != null && !element.isExpired() ? Long.MAX_VALUE : getRetainedUntil(file);
+        });
+        if (maxBytes > 0 && index != null) {
+            logger.info("CachedImageIOService repository limited to " + maxBytes + " bytes");
         }
+
+        if (index != null) {
+            warmFromIndex();
+        }
+        evictor.check();
+    }
+
+    /**
+     * Re-populates the cache with whatever it lost since the repository was last used, for the rest of its time to
+     * live. Files that expired meanwhile are left out, to be served stale or revalidated until deleted.
+     */
+    private void warmFromIndex() {
+        long timeToLive = cache.getCacheConfiguration().getTimeToLiveSeconds();
+        long now = System.currentTimeMillis();
+        int warmed = 0, kept = 0;
+        for (CacheIndex.Entry entry : index.getEntries()) {
+            File file = getRepositoryFile(entry.getName());
+            if (!file.exists() && shardLevels > 0 && new File(repository, entry.getName()).exists()) {
+                file = new File(repository, entry.getName());
+            }
+            if (!file.exists()) {
+                index.remove(entry.getName());
+            } else if (!cache.isKeyInCache(file.getAbsolutePath())) {
+                long age = (now - file.lastModified()) / 1000;
+                if (timeToLive <= 0 || age < timeToLive) {
+                    Element element = new Element(file.getAbsolutePath(), file);
+                    if (timeToLive > 0) {
+                        element.setTimeToLive((int) (timeToLive - age));
+                    }
+                    cache.put(element);
+                    warmed++;
+                } else if (getRetainedUntil(file) > now) {
+                    evictor.delete(file, true);
+                    kept++;
+                } else {
+                    index.remove(entry.getName());
+                    file.delete();
+                }
+            }
+        }
+        logger.info("CachedImageIOService restored " + warmed + " images to cache " + cache.getName() + " from index, kept " + kept + " expired");
     }
 
     public void createCacheManager() {
         URL url = getClass().getResource("/cache.xml");
-        cacheManager = CacheManager.newInstance(url);
+        synchronized (CachedImageIOService.class) {
+            cacheManager = CacheManager.newInstance(url);
+        }
     }
-
     public Ehcache getOrCreateCache() {
         if (!cacheManager.cacheExists(cacheName)) {
             logger.debug("Creating cache from defaults!");
@@ -105,8 +608,6 @@ public class CachedImageIOService extends BasicImageIOService {
             if (logger.isTraceEnabled()) {
                 logger.trace("Cache [" + cacheName + "] TimeToIdleSeconds: " + cache.getCacheConfiguration().getTimeToIdleSeconds());
             }
-            CacheEventListener myListener = new CacheEventListenerImpl();
-            cache.getCacheEventNotificationService().registerListener(myListener);
             return cache;
         } else {
             return cacheManager.getEhcache(cacheName);
@@ -118,6 +619,11 @@ public class CachedImageIOService extends BasicImageIOService {
         return fromURL(url, true);
     }
 
+    @Override
+    public Image fromURL(final URL url, final int newWidthInPixels, final int newHeightInPixels) throws IOException {
+        return fromURL(url, true, null, newWidthInPixels, newHeightInPixels);
+    }
+
     public Image fromURL(final URL url, boolean useCache) throws IOException {
         return fromURL(url, useCache, null);
     }
@@ -134,113 +640,76 @@ public class CachedImageIOService extends BasicImageIOService {
             if (newWidthInPixels > 0 || newHeightInPixels > 0) {
 
                 //Retrieve the image from cache using given size
-                String key = getKeyFromURLBySize(url, headers, newWidthInPixels, newHeightInPixels);
-                if (cache.get(key) != null) {
-                    if (logger.isTraceEnabled()) {
-                        logger.trace("Getting resized image from cache [" + repository.getAbsolutePath() + "]");
-                    }
+                final String key = getKeyFromURLBySize(url, headers, newWidthInPixels, newHeightInPixels);
+                image = readFromCache(url, key);
+                if (image == null) {
+                    image = readStale(url, headers, key, newWidthInPixels, newHeightInPixels);
+                }
+                if (image != null) {
+                    return image;
+                }
 
-                    File file = (File) cache.get(key).getObjectValue();
+                //Only one thread resizes a given size, others wait for its result
+                return coalesce(key, () -> {
+                    Image result = readFromCache(url, key);
+                    if (result != null) {
+                        return result;
+                    }
 
-                    if (file.exists()) {
-                        if (logger.isTraceEnabled()) {
-                            logger.trace("Found resized image [" + file.getName() + "] from cache");
+                    //A derivative kept after it expired is still current whilst its original is
+                    String originalKey = getKeyFromURLBySize(url, headers, 0, 0);
+                    File resizedFile = getFileFromURL(url, headers, newWidthInPixels, newHeightInPixels);
+                    if (index != null && index.get(resizedFile.getName()) != null && resizedFile.exists() && cache.get(originalKey) != null) {
+                        cache.put(new Element(key, resizedFile));
+                        result = readFromCache(url, key);
+                        if (result != null) {
+                            return result;
                         }
-                        BufferedImage buf = ImageIO.read(file);
-                        image = new Image(buf);
-                        image.setUrl(url);
-                        return image;
                     }
-                    logger.trace("Failed to retrieve resized image from cache");
-                }
 
-                //Retrieve the image from cache using original size
-                key = getKeyFromURLBySize(url, headers, 0, 0);
-                if (cache.get(key) != null) {
-                    if (logger.isTraceEnabled()) {
-                        logger.trace("Getting original image from cache [" + repository.getAbsolutePath() + "]");
+                    //Resize from the smallest cached derivative still large enough, rather than the original
+                    result = resizeFromDerivative(url, headers, newWidthInPixels, newHeightInPixels);
+                    if (result != null) {
+                        writeToCache(result, resizedFile);
+                        return result;
                     }
-                    File file = (File) cache.get(key).getObjectValue();
 
-                    if (file.exists()) {
-                        if (logger.isTraceEnabled()) {
-                            logger.trace("Found original image [" + file.getName() + "] from cache");
-                        }
-                        BufferedImage buf = ImageIO.read(file);
-                        image = new Image(buf);
-                        image.setUrl(url);
-                        try {
-                            //Now try to resize the image
-                            image = super.resize(image, newWidthInPixels, newHeightInPixels);
-                            File resizedFile = getFileFromURL(url, headers, newWidthInPixels, newHeightInPixels);
-                            writeToCache(image, resizedFile);
-                            if (logger.isTraceEnabled()) {
-                                logger.trace("Wrote resized image [" + file.getName() + ", " + image.getWidth() + "px by " + image.getHeight() + "px] to cache");
-                            }
-
-
-                        } catch (Exception e) {
-                            logger.error("Caught an exception whilst resizing image: {}", e);
-                            //return original image anyway
-                            return image;
-                        }
-                        //In all cases, return resized image to caller
-                        finally {
-                            return image;
+                    //Only decode as much of the cached original as the resize needs
+                    result = readFromCache(url, originalKey, newWidthInPixels, newHeightInPixels);
+                    if (result == null) {
+                        result = getOriginalImageFromCache(url, headers);
+
+                        //Revalidating the original may have restored its derivatives
+                        Image resized = readFromCache(url, key);
+                        if (resized != null) {
+                            return resized;
                         }
                     }
-                }
-
-                //Key wasn't in cache or file no longer exists on disk. Need to go and retrieve original file
-                image = getOriginalImage(url, headers);
-
-                //Try to cache the original image
-                File file = getFileFromURL(url, headers, 0, 0);
-                writeToCache(image, file);
-                try {
-                    //Now try to resize the image
-                    image = super.resize(image, newWidthInPixels, newHeightInPixels);
-                    File resizedFile = getFileFromURL(url, headers, newWidthInPixels, newHeightInPixels);
-                    writeToCache(image, resizedFile);
-                    if (logger.isTraceEnabled()) {
-                        logger.trace("Wrote resized image [" + file.getName() + ", " + image.getWidth() + "px by " + image.getHeight() + "px] to cache");
+                    try {
+                        //Now try to resize the image
+                        Image original = result;
+                        result = super.resize(original, newWidthInPixels, newHeightInPixels);
+                        original.release();
+                        writeToCache(result, resizedFile);
+                        if (logger.isTraceEnabled()) {
+                            logger.trace("Wrote resized image [" + resizedFile.getName() + ", " + result.getWidth() + "px by " + result.getHeight() + "px] to cache");
+                        }
+                    } catch (Exception e) {
+                        logger.error("Caught an exception whilst resizing image: {}", e);
                     }
-                } catch (Exception e) {
-                    logger.error("Caught an exception whilst resizing image: {}", e);
-                } finally {
                     //return original or resized image anyway
-                    return image;
-                }
-
+                    return result;
+                });
             }
 
             //No need to resize. Try to get from cache otherwise get it from the source and cache it
-            String key = getKeyFromURLBySize(url, headers, 0, 0);
-            if (cache.get(key) != null) {
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Getting original image from cache [" + repository.getAbsolutePath() + "]");
-                }
-                File file = (File) cache.get(key).getObjectValue();
-
-                if (file.exists()) {
-                    if (logger.isTraceEnabled()) {
-                        logger.trace("Found original image [" + file.getName() + "] from cache");
-                    }
-                    BufferedImage buf = ImageIO.read(file);
-                    image = new Image(buf);
-                    image.setUrl(url);
-                    return image;
-                }
+            image = readStale(url, headers, getKeyFromURLBySize(url, headers, 0, 0), 0, 0);
+            if (image != null) {
+                return image;
             }
-            //Key wasn't in cache or file no longer exists on disk. Need to go and retrieve original file
-            image = getOriginalImage(url, headers);
-
-            //Try to cache the original image
-            File file = getFileFromURL(url, headers, 0, 0);
-            writeToCache(image, file);
-            return image;
+            return getOriginalImageFromCache(url, headers);
         } else {
-            image = getOriginalImage(url, headers);
+            image = getOriginalImage(url, headers, newWidthInPixels, newHeightInPixels);
             if (newWidthInPixels > 0 || newHeightInPixels > 0) {
                 try {
                     image = super.resize(image, newWidthInPixels, newHeightInPixels);
@@ -253,111 +722,1260 @@ public class CachedImageIOService extends BasicImageIOService {
         }
     }
 
+    /**
+     * Reads the image from the repository, or fetches its original from the origin if it has to, leaving the decoding,
+     * and any resizing and writing to the cache, to the task.
+     */
+    @Override
+    public Callable<Image> fetch(final URL url, final int newWidthInPixels, final int newHeightInPixels) throws IOException {
+        if (repository == null || !repository.exists() || cache == null) {
+            final byte[] bytes = getOriginFetcher().fetch(url, null, null).getBody();
+            return () -> {
+                Image image = super.from(new ByteArrayInputStream(bytes), newWidthInPixels, newHeightInPixels);
+                image.setUrl(url);
+                if (newWidthInPixels > 0 || newHeightInPixels > 0) {
+                    try {
+                        image = super.resize(image, newWidthInPixels, newHeightInPixels);
+                    } catch (Exception e) {
+                        logger.error("Caught an exception whilst resizing image: {}", e);
+                    }
+                }
+                //return original or resized image anyway
+                return image;
+            };
+        }
 
-    private void writeToCache(Image image, File file) {
-        try {
-            ImageIO.write(image.getBufferedImage(), Image.ContentType.PNG.getSuffix(), file);
-            cache.put(new Element(file.getAbsolutePath(), file));
-        } catch (IOException e) {
-            if (logger.isErrorEnabled()) {
-                logger.error("Failed to write image file into cache repository {} : {}", file.getAbsolutePath(), e);
+        final byte[] bytes = readBytesFromCache(getKeyFromURLBySize(url, null, newWidthInPixels, newHeightInPixels));
+        if (bytes != null) {
+            return () -> {
+                Image image = super.from(new ByteArrayInputStream(bytes));
+                image.setUrl(url);
+                return image;
+            };
+        }
+
+        final String originalKey = getKeyFromURLBySize(url, null, 0, 0);
+        final OriginResponse response = isCached(originalKey) || new File(originalKey).exists() ? null : getOriginFetcher().fetch(url, null, null);
+        if (response == null) {
+            return () -> fromURL(url, true, null, newWidthInPixels, newHeightInPixels);
+        }
+        fetched.put(originalKey, response);
+        return () -> {
+            try {
+                return fromURL(url, true, null, newWidthInPixels, newHeightInPixels);
+            } finally {
+                fetched.remove(originalKey, response);
             }
-        } catch (Exception e) {
-            if (logger.isErrorEnabled()) {
-                logger.error("Failed to write key-value to cache {} : {}", cache.getName(), e);
+        };
+    }
+
+    public Image.ContentType streamTo(final URL url, final int newWidthInPixels, final int newHeightInPixels, final OutputStream outputStream) throws IOException {
+        return streamTo(url, null, newWidthInPixels, newHeightInPixels, outputStream);
+    }
+
+    /**
+     * Writes the encoded image straight to the output stream, copying the cached file as is rather than decoding and
+     * re-encoding it. The image is only decoded and resized if it is not in the cache yet. An original that is not
+     * resized is not even decoded if the origin sent it in the format it is cached in.
+     *
+     * @return The content type of the bytes written
+     */
+    public Image.ContentType streamTo(final URL url, final Map<String, String> headers, final int newWidthInPixels, final int newHeightInPixels, final OutputStream outputStream) throws IOException {
+        Image.ContentType contentType = getCacheContentType(url);
+        if (repository != null && repository.exists() && cache != null) {
+            String key = getKeyFromURLBySize(url, headers, newWidthInPixels, newHeightInPixels);
+            if (transferFromCache(key, outputStream)) {
+                return contentType;
+            }
+
+            //Not cached yet, populate the cache and stream the file it wrote. A copy kept from an expired entry is left
+            //to be served stale or revalidated as usual
+            Image image = null;
+            if (newWidthInPixels <= 0 && newHeightInPixels <= 0 && !new File(key).exists()) {
+                image = copyOriginal(url, headers);
+                if (image == null && transferFromCache(key, outputStream)) {
+                    return contentType;
+                }
             }
+            if (image == null) {
+                image = fromURL(url, true, headers, newWidthInPixels, newHeightInPixels);
+            }
+            if (transferFromCache(key, outputStream)) {
+                return contentType;
+            }
+
+            write(image, outputStream, contentType, cacheQuality);
+            return contentType;
         }
+
+        write(fromURL(url, false, headers, newWidthInPixels, newHeightInPixels), outputStream, contentType, cacheQuality);
+        return contentType;
     }
 
-    private Image getOriginalImage(URL url, Map<String, String> headers) throws java.io.IOException {
-        Image image;
-        if (headers != null && headers.size() > 0) {
-            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-            for (Map.Entry<String, String> header : headers.entrySet()) {
-                urlConnection.setRequestProperty(header.getKey(), header.getValue());
+    /**
+     * Retrieves the image with the pipeline applied, from the cache if it was processed before. The result is cached
+     * under the canonical form of the pipeline, so equal pipelines share it however they were built, in the format
+     * and quality of its encoding step if it has one.
+     */
+    public Image fromURL(final URL url, final boolean useCache, final Map<String, String> headers, final Pipeline pipeline) throws IOException {
+        if (pipeline.getOperations().isEmpty() && pipeline.getEncode() == null) {
+            return fromURL(url, useCache, headers);
+        }
+
+        if (useCache && repository != null && repository.exists() && cache != null) {
+            final File file = getRepositoryFile(getFileNameFromURL(url, headers, pipeline));
+            final String key = file.getAbsolutePath();
+            Image image = readFromCache(url, key);
+            if (image != null) {
+                return image;
             }
-            urlConnection.setUseCaches(false);
-            image = super.from(urlConnection.getInputStream());
-        } else {
-            image = super.fromURL(url);
+
+            //Only one thread processes a given pipeline, others wait for its result
+            return coalesce(key, () -> {
+                Image result = readFromCache(url, key);
+                if (result != null) {
+                    return result;
+                }
+
+                result = process(getOriginalImageFromCache(url, headers), pipeline);
+                Operation.Encode encode = pipeline.getEncode();
+                writeToCache(result, file, null, encode != null ? encode.getQuality() : cacheQuality);
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Wrote processed image [" + file.getName() + ", " + pipeline + "] to cache");
+                }
+                return result;
+            });
         }
-        image.setUrl(url);
-        return image;
-    }
 
-    private File getFileFromURL(URL url) {
-        return getFileFromURL(url, null, 0, 0);
+        try {
+            return process(getOriginalImage(url, headers, 0, 0), pipeline);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            IOException ioe = new IOException("Failed to process image " + url + " with " + pipeline);
+            ioe.initCause(e);
+            throw ioe;
+        }
     }
 
-    private File getFileFromURL(URL url, Map<String, String> headers) {
-        return getFileFromURL(url, headers, 0, 0);
-    }
+    /**
+     * Writes the image with the pipeline applied straight to the output stream, see
+     * {@link #streamTo(URL, Map, int, int, OutputStream)}.
+     *
+     * @return The content type of the bytes written
+     */
+    public Image.ContentType streamTo(final URL url, final Map<String, String> headers, final Pipeline pipeline, final OutputStream outputStream) throws IOException {
+        Operation.Encode encode = pipeline.getEncode();
+        Image.ContentType contentType = encode != null ? encode.getContentType() : getCacheContentType(url);
+        float quality = encode != null ? encode.getQuality() : cacheQuality;
+        if (repository != null && repository.exists() && cache != null) {
+            String key = getRepositoryFile(getFileNameFromURL(url, headers, pipeline)).getAbsolutePath();
+            if (transferFromCache(key, outputStream)) {
+                return contentType;
+            }
 
-    private File getFileFromURL(URL url, int width, int height) {
-        return getFileFromURL(url, null, width, height);
-    }
+            //Not cached yet, populate the cache and stream the file it wrote
+            Image image = fromURL(url, true, headers, pipeline);
+            if (transferFromCache(key, outputStream)) {
+                return contentType;
+            }
 
-    private File getFileFromURL(URL url, Map<String, String> headers, int width, int height) {
-        String filePath = getFileNameFromURLBySize(url, headers, width, height);
-        return new File(repository, filePath);
-    }
+            write(image, outputStream, contentType, quality);
+            return contentType;
+        }
 
-    private String getKeyFromURLBySize(URL url, int width, int height) {
-        return getKeyFromURLBySize(url, null, width, height);
+        write(fromURL(url, false, headers, pipeline), outputStream, contentType, quality);
+        return contentType;
     }
 
-    private String getKeyFromURLBySize(URL url, Map<String, String> headers, int width, int height) {
-        if (url == null) {
-            return null;
+    /**
+     * Brings the images into the offline repository in all the requested sizes ahead of them being asked for, such as
+     * when publishing a catalogue. Each original is fetched once, or read from the repository if already there, and
+     * decoded once to produce all of its missing sizes. Sizes already cached are left alone.
+     * <p>
+     * Images are prefetched by the given number of threads, with requests to each host also limited by the origin
+     * fetcher, see {@link HttpOriginFetcher}. Blocks until all requests are done.
+     *
+     * @param listener Told as each request completes or fails, or null
+     */
+    public PrefetchSummary prefetch(List<PrefetchRequest> requests, int concurrency, final PrefetchListener listener) throws InterruptedException {
+        if (repository == null || cache == null) {
+            throw new IllegalStateException("Prefetching needs an offline path and cache name");
         }
-        return getFileFromURL(url, headers, width, height).getAbsolutePath();
-    }
 
-    private String getFileNameFromURLBySize(URL url, int width, int height) {
-        return getFileNameFromURLBySize(url, null, width, height);
+        final PrefetchSummary summary = new PrefetchSummary(requests.size());
+        final AtomicInteger complete = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, requests.size())), threads("frame-prefetch"));
+        try {
+            for (final PrefetchRequest request : requests) {
+                executor.execute(() -> {
+                    int[] counts;
+                    try {
+                        counts = prefetch(request);
+                    } catch (Exception e) {
+                        summary.failed(request, e);
+                        logger.warn("Failed to prefetch image {}: {}", request.getUrl(), e);
+                        if (listener != null) {
+                            listener.onFailure(request, e, complete.incrementAndGet());
+                        }
+                        return;
+                    }
+                    summary.prefetched(counts[0], counts[1]);
+                    if (listener != null) {
+                        listener.onPrefetched(request, counts[0], complete.incrementAndGet());
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Prefetched " + complete.get() + " of " + requests.size() + " images so far");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        summary.setElapsed(System.currentTimeMillis() - start);
+        logger.info("CachedImageIOService prefetch: {}", summary);
+        return summary;
     }
 
-    private String getFileNameFromURLBySize(URL url, Map<String, String> headers, int width, int height) {
-        StringBuilder buf = new StringBuilder();
-        String s = url.toString();
+    /**
+     * @return The number of sizes resized and the number already cached
+     */
+    private int[] prefetch(PrefetchRequest request) throws IOException {
+        final URL url = request.getUrl();
+        final Map<String, String> headers = request.getHeaders();
 
-        //Use the headers to generate
-        if (headers != null && !headers.isEmpty()) {
-            for (Map.Entry e : headers.entrySet()) {
-                s = s.concat((String) e.getKey()).concat((String) e.getValue());
+        List<Dimension> missing = new ArrayList<Dimension>();
+        int cached = 0;
+        for (Dimension size : request.getSizes()) {
+            if (isCached(getKeyFromURLBySize(url, headers, size.width, size.height))) {
+                cached++;
+            } else {
+                missing.add(size);
             }
         }
-        buf.append(DigestUtils.md5Hex(s));
-        if (width > 0) {
-            buf.append(WIDTH);
-            buf.append(width);
-        }
-
-        if (height > 0) {
-            buf.append(HEIGHT);
-            buf.append(height);
+        if (missing.isEmpty() && !request.getSizes().isEmpty()) {
+            return new int[]{0, cached};
         }
 
-        buf.append(".");
-        buf.append(Image.ContentType.PNG.getSuffix());
+        final Image original = getOriginalImageFromCache(url, headers);
+        int resized = 0;
+        try {
+            for (Dimension size : missing) {
+                final int width = size.width, height = size.height;
+                final String key = getKeyFromURLBySize(url, headers, width, height);
 
-        return buf.toString();
+                //Coalesced with requests for the same size being served meanwhile, which count as resized too
+                Image image = coalesce(key, () -> {
+                    if (isCached(key)) {
+                        return null;
+                    }
+                    Image result = super.resize(original, width, height);
+                    result.setUrl(url);
+                    writeToCache(result, getFileFromURL(url, headers, width, height));
+                    return result;
+                });
+                if (image != null) {
+                    resized++;
+                    image.release();
+                } else {
+                    cached++;
+                }
+            }
+        } finally {
+            original.release();
+        }
+        return new int[]{resized, cached};
     }
 
-    // This method is used to delete the file from the filesystem cache when it is evicted or expired from ehcache.
-    public static boolean deleteFromRepository(String path) {
-        File file = new File(path);
-        if (file.exists()) {
-            file.delete();
+    /**
+     * @return Whether the image is in the repository or being written to it, without counting as an access
+     */
+    private boolean isCached(String key) {
+        if (writeBehind != null && writeBehind.getPending(key) != null) {
             return true;
         }
-        return false;
+        Element element = cache.getQuiet(key);
+        return element != null && ((File) element.getObjectValue()).exists();
     }
 
-    public void shutdownCacheManager() {
-        if (cacheManager != null) {
-            logger.debug("Shutting down cache manager for cache {}", cache.getName());
-            cacheManager.shutdown();
+    @Override
+    public ImageInfo probe(URL url) throws IOException {
+        return probe(url, null);
+    }
+
+    /**
+     * Reads the dimensions and format of the source image from its header, remembering them in the index of the
+     * repository for as long as cached images live. They are also recorded whenever the original is fetched, so
+     * probing a cached image needs no request to the origin.
+     *
+     * @return The header information, or null if not an image in a readable format
+     */
+    public ImageInfo probe(URL url, Map<String, String> headers) throws IOException {
+        String source = getSourceName(url, headers);
+        if (index != null) {
+            ImageInfo info = index.getInfo(source, getProbedSince());
+            if (info != null) {
+                return info;
+            }
+        }
+
+        ImageInfo info;
+        InputStream inputStream = getOriginFetcher().open(url, headers);
+        try {
+            info = super.probe(inputStream);
+        } finally {
+            inputStream.close();
+        }
+        if (index != null && info != null) {
+            index.setInfo(source, info);
         }
+        return info;
+    }
+
+    private long getProbedSince() {
+        long timeToLive = cache != null ? cache.getCacheConfiguration().getTimeToLiveSeconds() : 0;
+        return timeToLive > 0 ? System.currentTimeMillis() - timeToLive * 1000 : 0;
+    }
+
+    /**
+     * @return Number of cache misses that were served by waiting on a concurrent fetch or resize of the same image
+     */
+    public long getCoalescedRequestCount() {
+        return coalescer.getCoalescedCount();
+    }
+
+    /**
+     * @return Number of fetches and resizes actually performed on cache misses
+     */
+    public long getExecutedRequestCount() {
+        return coalescer.getExecutedCount();
+    }
+
+    private Image getOriginalImageFromCache(final URL url, final Map<String, String> headers) throws IOException {
+        final String key = getKeyFromURLBySize(url, headers, 0, 0);
+        Image image = readFromCache(url, key);
+        if (image != null) {
+            return image;
+        }
+
+        //Key wasn't in cache or file no longer exists on disk. Only one thread retrieves the original file
+        return coalesce(key, () -> {
+            Image result = readFromCache(url, key);
+            if (result != null) {
+                return result;
+            }
+
+            //Ask the origin whether a copy kept from an expired entry is still current
+            File file = getFileFromURL(url, headers, 0, 0);
+            Validators validators = getValidators(file);
+            long now = System.currentTimeMillis();
+            OriginResponse response = null;
+            if (validators != null) {
+                if (!validators.isFresh(now)) {
+                    response = getOriginFetcher().fetch(url, headers, validators);
+                }
+                if (response == null || response.isNotModified()) {
+                    restore(file, validators.isFresh(now) ? validators : validators.revalidated(now));
+                    result = readFromCache(url, key);
+                    if (result != null) {
+                        return result;
+                    }
+                    response = null;
+                }
+            }
+            if (response == null) {
+                response = fetched.remove(key);
+            }
+            if (response == null) {
+                response = getOriginFetcher().fetch(url, headers, null);
+            }
+            if (index != null && index.get(file.getName()) != null) {
+                //Replacing a copy kept from an expired entry, its derivatives may be out of date
+                removeDerivatives(file);
+            }
+            setStorable(file, response);
+
+            result = super.from(response.getInputStream());
+            result.setUrl(url);
+            if (index != null) {
+                try {
+                    ImageInfo info = super.probe(response.getInputStream());
+                    if (info != null) {
+                        index.setInfo(CacheIndex.sourceOf(file.getName()), info);
+                    }
+                } catch (IOException e) {
+                    logger.debug("Failed to read header of image {}: {}", url, e);
+                }
+            }
+
+            //Try to cache the original image
+            writeToCache(result, file, response.getValidators());
+            return result;
+        });
+    }
+
+    /**
+     * Fetches the original into the repository, copying the bytes the origin sent as they are if already in the format
+     * it is cached in, rather than decoding and encoding them again.
+     *
+     * @return The decoded original if it had to be converted, or null if copied or already cached
+     */
+    private Image copyOriginal(final URL url, final Map<String, String> headers) throws IOException {
+        final String key = getKeyFromURLBySize(url, headers, 0, 0);
+        return coalesce(key, () -> {
+            if (isCached(key)) {
+                return null;
+            }
+
+            File file = new File(key);
+            OriginResponse response = getOriginFetcher().fetch(url, headers, null);
+            if (!setStorable(file, response)) {
+                Image image = super.from(response.getInputStream());
+                image.setUrl(url);
+                return image;
+            }
+            ImageInfo info = null;
+            try {
+                info = super.probe(response.getInputStream());
+            } catch (IOException e) {
+                logger.debug("Failed to read header of image {}: {}", url, e);
+            }
+            if (index != null && info != null) {
+                index.setInfo(CacheIndex.sourceOf(file.getName()), info);
+            }
+            if (info != null && info.getContentType() == getCacheContentType(url)) {
+                copyToCache(response.getBody(), file, info, response.getValidators());
+                return null;
+            }
+
+            Image image = super.from(response.getInputStream());
+            image.setUrl(url);
+            writeToCache(image, file, response.getValidators());
+            return image;
+        });
+    }
+
+    /**
+     * Resizes from the smallest derivative of the same source in the cache that is at least as large as the target,
+     * going by the sizes in the index. Which derivatives qualify follows the cropping done by
+     * {@link BasicImageIOService#resize(Image, int, int)}: derivatives resized by width or height alone keep the whole
+     * image and can be the source of any size, whereas square, cropped derivatives can only be the source of smaller
+     * squares. Derivatives stretched to both a width and height are never used.
+     *
+     * @return The resized image, or null if no derivative is large enough
+     */
+    private Image resizeFromDerivative(URL url, Map<String, String> headers, int width, int height) throws Exception {
+        if (index == null) {
+            return null;
+        }
+
+        String originalName = getFileFromURL(url, headers, 0, 0).getName();
+        String targetName = getFileFromURL(url, headers, width, height).getName();
+        CacheIndex.Entry original = index.get(originalName);
+
+        CacheIndex.Entry best = null;
+        for (CacheIndex.Entry entry : index.getBySource(CacheIndex.sourceOf(originalName))) {
+            Matcher matcher = DERIVATIVE_NAME.matcher(entry.getName());
+            if (entry.isOriginal() || entry.getName().equals(targetName) || !matcher.matches()) {
+                continue;
+            }
+            if (original != null && (entry.getWidth() > original.getWidth() || entry.getHeight() > original.getHeight())) {
+                //Enlarged, no better than the original
+                continue;
+            }
+
+            boolean cropped = matcher.group(1) != null && matcher.group(1).equals(matcher.group(2));
+            boolean stretched = matcher.group(1) != null && matcher.group(2) != null && !cropped;
+            boolean large;
+            if (stretched) {
+                large = false;
+            } else if (width == height) {
+                large = Math.min(entry.getWidth(), entry.getHeight()) >= width;
+            } else if (cropped) {
+                large = false;
+            } else {
+                large = entry.getWidth() >= width && entry.getHeight() >= height;
+            }
+
+            if (large && (best == null || (long) entry.getWidth() * entry.getHeight() < (long) best.getWidth() * best.getHeight())) {
+                best = entry;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+
+        Image source = readFromCache(url, getRepositoryFile(best.getName()).getAbsolutePath(), width, height);
+        if (source == null) {
+            return null;
+        }
+
+        //Keep to the dimensions resizing the original gives, which rounding may otherwise change by a pixel
+        int resizeWidth = width, resizeHeight = height;
+        if (original != null && (width <= 0 || height <= 0)) {
+            int calcWidth = width > 0 ? width : (height * original.getWidth() / original.getHeight());
+            int calcHeight = height > 0 ? height : (width * original.getHeight() / original.getWidth());
+            if (calcWidth != calcHeight) {
+                resizeWidth = calcWidth;
+                resizeHeight = calcHeight;
+            }
+        }
+
+        Image image = super.resize(source, resizeWidth, resizeHeight);
+        source.release();
+        image.setUrl(url);
+        resizedFromDerivatives.incrementAndGet();
+        if (logger.isTraceEnabled()) {
+            logger.trace("Resized image [" + targetName + "] from cached [" + best.getName() + "]");
+        }
+        return image;
+    }
+
+    /**
+     * @return The validators of an original kept in the repository, or null if it has none or is gone
+     */
+    private Validators getValidators(File file) {
+        if (index == null) {
+            return null;
+        }
+        CacheIndex.Entry entry = index.get(file.getName());
+        if (entry == null || entry.getValidators() == null || !file.exists()) {
+            return null;
+        }
+        return entry.getValidators();
+    }
+
+    /**
+     * Puts an original the origin confirmed as current back into the cache, along with all its derivatives still in
+     * the repository.
+     */
+    private void restore(File file, Validators validators) {
+        index.setValidators(file.getName(), validators);
+        for (CacheIndex.Entry entry : index.getBySource(CacheIndex.sourceOf(file.getName()))) {
+            File restored = getRepositoryFile(entry.getName());
+            if (restored.exists() && !cache.isKeyInCache(restored.getAbsolutePath())) {
+                cache.put(new Element(restored.getAbsolutePath(), restored));
+                //Restart the time it may be served stale for
+                restored.setLastModified(System.currentTimeMillis());
+            }
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("Revalidated image [" + file.getName() + "] with origin");
+        }
+    }
+
+    private void removeDerivatives(File file) {
+        for (CacheIndex.Entry entry : index.getBySource(CacheIndex.sourceOf(file.getName()))) {
+            if (!entry.isOriginal()) {
+                removeNow(getRepositoryFile(entry.getName()));
+            }
+        }
+    }
+
+    /**
+     * Removes a file from the cache and repository on this thread, without notifying the cache listener, whose
+     * deletes in the background could otherwise remove the file after it is written again.
+     */
+    private void removeNow(File file) {
+        cache.removeQuiet(file.getAbsolutePath());
+        if (memoryTier != null) {
+            memoryTier.remove(file.getAbsolutePath());
+        }
+        if (index != null) {
+            index.remove(file.getName());
+        }
+        file.delete();
+    }
+
+    /**
+     * Reads an expired image kept in the repository, if stale images may be served and it is not too old, and starts
+     * refreshing it in the background.
+     *
+     * @return The stale image, or null if there is none to serve
+     */
+    private Image readStale(URL url, Map<String, String> headers, String key, int newWidthInPixels, int newHeightInPixels) throws IOException {
+        if (maxStaleness <= 0) {
+            return null;
+        }
+
+        File file = new File(key);
+        long timeToLive = cache.getCacheConfiguration().getTimeToLiveSeconds();
+        if (timeToLive <= 0) {
+            return null;
+        }
+        if (System.currentTimeMillis() > file.lastModified() + (timeToLive + maxStaleness) * 1000) {
+            //Too stale to serve, only kept any longer for the origin to revalidate
+            if (file.exists() && System.currentTimeMillis() >= getRetainedUntil(file)) {
+                removeNow(file);
+            }
+            return null;
+        }
+
+        Image image;
+        try {
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                image = super.from(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        image.setUrl(url);
+        staleHits.incrementAndGet();
+        if (logger.isTraceEnabled()) {
+            logger.trace("Serving stale image [" + file.getName() + "] whilst refreshing");
+        }
+
+        refresh(url, headers, key, newWidthInPixels, newHeightInPixels);
+        return image;
+    }
+
+    /**
+     * Refreshes the original in the background and then the stale image, unless a refresh of it is under way.
+     */
+    private void refresh(final URL url, final Map<String, String> headers, final String key, final int newWidthInPixels, final int newHeightInPixels) {
+        if (!refreshing.add(key)) {
+            return;
+        }
+
+        try {
+            getRefresher().execute(() -> {
+                try {
+                    getOriginalImageFromCache(url, headers).release();
+                    if ((newWidthInPixels > 0 || newHeightInPixels > 0) && cache.get(key) == null) {
+                        //Not restored along with the original, so resize it again
+                        removeNow(new File(key));
+                        fromURL(url, true, headers, newWidthInPixels, newHeightInPixels).release();
+                    }
+                } catch (Exception e) {
+                    logger.warn("Failed to refresh stale image {}: {}", url, e);
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RuntimeException e) {
+            refreshing.remove(key);
+            throw e;
+        }
+    }
+
+    private synchronized ExecutorService getRefresher() {
+        if (refresher == null) {
+            refresher = Executors.newFixedThreadPool(REFRESH_THREADS, threads("frame-refresh"));
+        }
+        return refresher;
+    }
+
+    private static ThreadFactory threads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private Image readFromCache(URL url, String key) throws IOException {
+        return readFromCache(url, key, 0, 0);
+    }
+
+    private Image readFromCache(URL url, String key, int newWidthInPixels, int newHeightInPixels) throws IOException {
+        if (writeBehind != null) {
+            Image image = writeBehind.getPending(key);
+            if (image != null && image.tryRetain()) {
+                return image;
+            }
+        }
+
+        File file = getCachedFile(key);
+        if (file == null) {
+            return null;
+        }
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("Getting image from cache [" + repository.getAbsolutePath() + "]");
+        }
+
+        InputStream inputStream;
+        ByteBuffer bytes = readFromMemory(key, file);
+        if (bytes != null) {
+            inputStream = new ByteBufferInputStream(bytes);
+        } else {
+            try {
+                inputStream = new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                diskMisses.incrementAndGet();
+                logger.trace("Failed to retrieve image from cache");
+                return null;
+            }
+            diskHits.incrementAndGet();
+        }
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("Found image [" + file.getName() + "] from cache");
+        }
+        try {
+            Image image = super.from(inputStream, newWidthInPixels, newHeightInPixels);
+            image.setUrl(url);
+            return image;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * @return The encoded image, or null if not in the repository or still being written to it
+     */
+    private byte[] readBytesFromCache(String key) throws IOException {
+        if ((writeBehind != null && writeBehind.getPending(key) != null) || !isCached(key)) {
+            return null;
+        }
+        File file = getCachedFile(key);
+        if (file == null) {
+            return null;
+        }
+
+        ByteBuffer bytes = readFromMemory(key, file);
+        if (bytes != null) {
+            byte[] data = new byte[bytes.remaining()];
+            bytes.get(data);
+            return data;
+        }
+        byte[] data;
+        try {
+            data = FileUtils.readFileToByteArray(file);
+        } catch (FileNotFoundException e) {
+            diskMisses.incrementAndGet();
+            return null;
+        }
+        diskHits.incrementAndGet();
+        return data;
+    }
+
+    private boolean transferFromCache(String key, OutputStream outputStream) throws IOException {
+        File file = getCachedFile(key);
+        if (file == null) {
+            return false;
+        }
+
+        ByteBuffer bytes = readFromMemory(key, file);
+        if (bytes != null) {
+            WritableByteChannel target = Channels.newChannel(outputStream);
+            while (bytes.hasRemaining()) {
+                target.write(bytes);
+            }
+            outputStream.flush();
+            return true;
+        }
+
+        FileInputStream inputStream;
+        try {
+            inputStream = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            diskMisses.incrementAndGet();
+            logger.trace("Cached image no longer exists on disk");
+            return false;
+        }
+        diskHits.incrementAndGet();
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("Streaming image [" + file.getName() + "] from cache");
+        }
+        try {
+            FileChannel channel = inputStream.getChannel();
+            WritableByteChannel target = Channels.newChannel(outputStream);
+            long position = 0, size = channel.size();
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+            outputStream.flush();
+        } finally {
+            inputStream.close();
+        }
+        return true;
+    }
+
+    /**
+     * @return The file the cache holds for the key, whether or not it still exists, or null if not cached
+     */
+    private File getCachedFile(String key) {
+        Element element = cache.get(key);
+        if (element == null && shardLevels > 0) {
+            //Not migrated from the flat layout yet
+            File flat = new File(repository, new File(key).getName());
+            if (flat.exists()) {
+                File file = rehome(flat);
+                if (file != null) {
+                    element = new Element(file.getAbsolutePath(), file);
+                }
+            }
+        }
+        if (element == null) {
+            diskMisses.incrementAndGet();
+            if (memoryTier != null) {
+                memoryTier.remove(key);
+            }
+            return null;
+        }
+        File file = (File) element.getObjectValue();
+        if (index != null) {
+            index.touch(file.getName());
+        }
+        return file;
+    }
+
+    /**
+     * @return The encoded image from the memory tier, loading it from the offline repository if it is small enough
+     */
+    private ByteBuffer readFromMemory(String key, File file) throws IOException {
+        if (memoryTier == null) {
+            return null;
+        }
+
+        ByteBuffer bytes = memoryTier.get(key);
+        if (bytes == null && memoryTier.accepts(file.length())) {
+            byte[] data;
+            try {
+                data = FileUtils.readFileToByteArray(file);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            diskHits.incrementAndGet();
+            memoryTier.put(key, data);
+            bytes = ByteBuffer.wrap(data);
+        }
+        return bytes;
+    }
+
+    /**
+     * Moves a file from the flat layout into its shard, replacing the cache entry for the old location.
+     *
+     * @return The new location, or null if the file could not be moved
+     */
+    private File rehome(File flat) {
+        File file = getRepositoryFile(flat.getName());
+        try {
+            FileUtils.forceMkdir(file.getParentFile());
+            Files.move(flat.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (!file.exists()) {
+                logger.warn("Failed to move {} into its shard: {}", flat.getAbsolutePath(), e);
+                return null;
+            }
+            //Moved by another thread in the meantime
+        }
+
+        cache.remove(flat.getAbsolutePath());
+        if (memoryTier != null) {
+            memoryTier.remove(flat.getAbsolutePath());
+        }
+        cache.put(new Element(file.getAbsolutePath(), file));
+        return file;
+    }
+
+    private Image coalesce(String key, final Callable<Image> loader) throws IOException {
+        try {
+            final boolean[] loaded = new boolean[1];
+            Image image = coalescer.execute(key, () -> {
+                loaded[0] = true;
+                return loader.call();
+            });
+            if (!loaded[0] && image != null && !image.tryRetain()) {
+                //The thread that loaded it was done with it before this one got to it, so it is in the cache by now
+                return coalesce(key, loader);
+            }
+            return image;
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting for image " + key);
+        } catch (Exception e) {
+            IOException ioe = new IOException("Failed to load image " + key);
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    private void writeToCache(Image image, File file) {
+        writeToCache(image, file, null);
+    }
+
+    private void writeToCache(Image image, File file, Validators validators) {
+        writeToCache(image, file, validators, cacheQuality);
+    }
+
+    private void writeToCache(final Image image, final File file, final Validators validators, final float quality) {
+        if (noStore.contains(CacheIndex.sourceOf(file.getName()))) {
+            if (logger.isTraceEnabled()) {
+                logger.trace("Not writing image [" + file.getName() + "] to cache, the origin sent its source with no-store");
+            }
+            return;
+        }
+        if (writeBehind != null) {
+            //Keep pooled pixels from being reused whilst waiting to be written
+            image.retain();
+            boolean queued = writeBehind.submit(file.getAbsolutePath(), image, () -> {
+                try {
+                    writeToCacheNow(image, file, validators, quality);
+                } finally {
+                    image.release();
+                }
+            });
+            if (!queued) {
+                image.release();
+            }
+        } else {
+            writeToCacheNow(image, file, validators, quality);
+        }
+    }
+
+    private void writeToCacheNow(Image image, File file, Validators validators, float quality) {
+        try {
+            Image.ContentType contentType = Image.ContentType.forSuffix(FilenameUtils.getExtension(file.getName()));
+            byte[] data = null;
+            //Written next to the file and moved into place, so readers never see it half written
+            FileUtils.forceMkdir(file.getParentFile());
+            File temp = File.createTempFile(file.getName(), TEMP_SUFFIX, file.getParentFile());
+            try {
+                if (memoryTier != null) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    write(image, bytes, contentType, quality);
+                    data = bytes.toByteArray();
+                    FileUtils.writeByteArrayToFile(temp, data);
+                } else {
+                    OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(temp));
+                    try {
+                        write(image, outputStream, contentType, quality);
+                    } finally {
+                        outputStream.close();
+                    }
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                FileUtils.deleteQuietly(temp);
+            }
+            putInCache(file, data, image.getWidth(), image.getHeight(), contentType, validators);
+        } catch (IOException e) {
+            if (logger.isErrorEnabled()) {
+                logger.error("Failed to write image file into cache repository {} : {}", file.getAbsolutePath(), e);
+            }
+        } catch (Exception e) {
+            if (logger.isErrorEnabled()) {
+                logger.error("Failed to write key-value to cache {} : {}", cache.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Records whether the origin allows the source of the file, and so anything produced from it, to be stored.
+     *
+     * @return False if the origin sent it with Cache-Control no-store
+     */
+    private boolean setStorable(File file, OriginResponse response) {
+        String source = CacheIndex.sourceOf(file.getName());
+        if (response.isStorable()) {
+            noStore.remove(source);
+            return true;
+        }
+        noStore.add(source);
+        return false;
+    }
+
+    /**
+     * Writes the encoded bytes of an image to the repository as they are, on the requesting thread.
+     */
+    private void copyToCache(byte[] data, File file, ImageInfo info, Validators validators) {
+        try {
+            FileUtils.forceMkdir(file.getParentFile());
+            File temp = File.createTempFile(file.getName(), TEMP_SUFFIX, file.getParentFile());
+            try {
+                FileUtils.writeByteArrayToFile(temp, data);
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                FileUtils.deleteQuietly(temp);
+            }
+            putInCache(file, memoryTier != null ? data : null, info.getWidth(), info.getHeight(), info.getContentType(), validators);
+            if (logger.isTraceEnabled()) {
+                logger.trace("Copied image [" + file.getName() + "] to cache as the origin sent it");
+            }
+        } catch (IOException e) {
+            if (logger.isErrorEnabled()) {
+                logger.error("Failed to write image file into cache repository {} : {}", file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Adds a file written to the repository to the cache, memory tier and index.
+     *
+     * @param data The encoded image to keep in memory, or null
+     */
+    private void putInCache(File file, byte[] data, int width, int height, Image.ContentType contentType, Validators validators) {
+        if (data != null) {
+            memoryTier.put(file.getAbsolutePath(), data);
+        }
+        cache.put(new Element(file.getAbsolutePath(), file));
+        if (index != null) {
+            index.put(file.getName(), file.length(), width, height, contentType, validators);
+            evictor.check();
+        }
+    }
+
+    private Image getOriginalImage(URL url, Map<String, String> headers, int newWidthInPixels, int newHeightInPixels) throws java.io.IOException {
+        Image image = super.from(getOriginFetcher().fetch(url, headers, null).getInputStream(), newWidthInPixels, newHeightInPixels);
+        image.setUrl(url);
+        return image;
+    }
+
+    private File getFileFromURL(URL url) {
+        return getFileFromURL(url, null, 0, 0);
+    }
+
+    private File getFileFromURL(URL url, Map<String, String> headers) {
+        return getFileFromURL(url, headers, 0, 0);
+    }
+
+    private File getFileFromURL(URL url, int width, int height) {
+        return getFileFromURL(url, null, width, height);
+    }
+
+    private File getFileFromURL(URL url, Map<String, String> headers, int width, int height) {
+        return getRepositoryFile(getFileNameFromURLBySize(url, headers, width, height));
+    }
+
+    /**
+     * @return Where a file of the given name is stored in the repository
+     */
+    private File getRepositoryFile(String name) {
+        File directory = repository;
+        for (int level = 0; level < shardLevels; level++) {
+            directory = new File(directory, name.substring(level * 2, level * 2 + 2));
+        }
+        return new File(directory, name);
+    }
+
+    private String getKeyFromURLBySize(URL url, int width, int height) {
+        return getKeyFromURLBySize(url, null, width, height);
+    }
+
+    private String getKeyFromURLBySize(URL url, Map<String, String> headers, int width, int height) {
+        if (url == null) {
+            return null;
+        }
+        return getFileFromURL(url, headers, width, height).getAbsolutePath();
+    }
+
+    private String getFileNameFromURLBySize(URL url, int width, int height) {
+        return getFileNameFromURLBySize(url, null, width, height);
+    }
+
+    private String getFileNameFromURLBySize(URL url, Map<String, String> headers, int width, int height) {
+        StringBuilder buf = new StringBuilder(getSourceName(url, headers));
+        if (width > 0) {
+            buf.append(WIDTH);
+            buf.append(width);
+        }
+
+        if (height > 0) {
+            buf.append(HEIGHT);
+            buf.append(height);
+        }
+
+        buf.append(".");
+        buf.append(getCacheContentType(url).getSuffix());
+
+        return buf.toString();
+    }
+
+    /**
+     * @return Name of the file holding the result of the pipeline, in the format it encodes to if it says
+     */
+    private String getFileNameFromURL(URL url, Map<String, String> headers, Pipeline pipeline) {
+        Image.ContentType contentType = pipeline.getEncode() != null ? pipeline.getEncode().getContentType() : getCacheContentType(url);
+        return getSourceName(url, headers) + PIPELINE + pipeline.getKey() + "." + contentType.getSuffix();
+    }
+
+    private String getSourceName(URL url, Map<String, String> headers) {
+        String s = url.toString();
+
+        //Use the headers to generate
+        if (headers != null && !headers.isEmpty()) {
+            for (Map.Entry e : headers.entrySet()) {
+                s = s.concat((String) e.getKey()).concat((String) e.getValue());
+            }
+        }
+        return DigestUtils.md5Hex(s);
+    }
+
+    /**
+     * @return The format the image is cached in, going by the extension of the URL path when caching in the source
+     * format, as the key has to be known before the image is fetched
+     */
+    private Image.ContentType getCacheContentType(URL url) {
+        if (cacheFormat != null) {
+            return cacheFormat;
+        }
+        return Image.ContentType.forSuffix(FilenameUtils.getExtension(url.getPath())) == Image.ContentType.JPEG ? Image.ContentType.JPEG : Image.ContentType.PNG;
+    }
+
+    /**
+     * Deletes the file of an expired cache entry in the background, unless the repository serves stale images or it
+     * belongs to an original with validators, in which case it is kept for the origin to confirm it is still current.
+     * Kept files are deleted once past the maximum staleness or revalidation window. Files outside the repository of
+     * this service are left alone.
+     *
+     * @return Whether the file is being deleted
+     */
+    public boolean expireFromRepository(String path) {
+        return deleteFromRepository(new File(path), true);
+    }
+
+    /**
+     * Deletes the file of a cache entry removed or evicted in the background, if in the repository of this service.
+     *
+     * @return Whether the file is being deleted
+     */
+    public boolean removeFromRepository(String path) {
+        return deleteFromRepository(new File(path), false);
+    }
+
+    private boolean deleteFromRepository(File file, boolean expired) {
+        RepositoryEvictor evictor = this.evictor;
+        if (evictor == null || !isInRepository(file)) {
+            return false;
+        }
+        try {
+            return evictor.delete(file, expired);
+        } catch (RejectedExecutionException e) {
+            //Shut down meanwhile
+            return false;
+        }
+    }
+
+    /**
+     * @return Whether the file is in the repository, whichever shard it is in
+     */
+    private boolean isInRepository(File file) {
+        String path = repository.getAbsolutePath();
+        File directory = file.getAbsoluteFile().getParentFile();
+        for (int level = 0; directory != null && level <= MAX_SHARD_LEVELS; level++) {
+            if (directory.getPath().equals(path)) {
+                return true;
+            }
+            directory = directory.getParentFile();
+        }
+        return false;
+    }
+
+    /**
+     * @return Time until which an expired file is kept, or 0 if it is deleted straight away
+     */
+    private long getRetainedUntil(File file) {
+        long timeToLive = cache != null ? cache.getCacheConfiguration().getTimeToLiveSeconds() : 0;
+        if (timeToLive <= 0) {
+            return 0;
+        }
+
+        long window = maxStaleness;
+        if (revalidateWindow > window && index != null) {
+            CacheIndex.Entry original = index.getOriginal(CacheIndex.sourceOf(file.getName()));
+            if (original != null && original.getValidators() != null) {
+                window = revalidateWindow;
+            }
+        }
+        return window > 0 ? file.lastModified() + (timeToLive + window) * 1000 : 0;
+    }
+
+    // This method is used to delete the file from the filesystem cache when it is evicted or expired from ehcache.
+    // Services delete the files of their own repository through removeFromRepository(), which also updates the index.
+    public static boolean deleteFromRepository(String path) {
+        File file = new File(path);
+        if (file.exists()) {
+            file.delete();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Completes queued writes and deletes, disposes of the image writers and closes the repository index. The cache
+     * manager is shut down once no other service is using it.
+     */
+    public void shutdownCacheManager() {
+        synchronized (this) {
+            if (refresher != null) {
+                refresher.shutdown();
+                refresher = null;
+            }
+        }
+        if (listener != null) {
+            cache.getCacheEventNotificationService().unregisterListener(listener);
+        }
+        if (writeBehind != null) {
+            try {
+                if (!writeBehind.shutdown(60, TimeUnit.SECONDS)) {
+                    logger.warn("Timed out waiting for {} queued writes to the cache", writeBehind.getQueueSize());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        disposeWriters();
+        if (evictor != null) {
+            try {
+                if (!evictor.shutdown(60, TimeUnit.SECONDS)) {
+                    logger.warn("Timed out waiting for files to be deleted from the repository");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close cache index {}", index.getFile().getAbsolutePath());
+            }
+            index = null;
+        }
+        synchronized (CachedImageIOService.class) {
+            if (listener != null) {
+                listener = null;
+                if (!isInUse(cacheManager)) {
+                    logger.debug("Shutting down cache manager for cache {}", cache.getName());
+                    cacheManager.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Whether any service still listens to a cache of the cache manager
+     */
+    private static boolean isInUse(CacheManager cacheManager) {
+        if (cacheManager.getStatus() != Status.STATUS_ALIVE) {
+            return false;
+        }
+        for (String name : cacheManager.getCacheNames()) {
+            Ehcache cache = cacheManager.getEhcache(name);
+            if (cache != null) {
+                for (CacheEventListener listener : cache.getCacheEventNotificationService().getCacheEventListeners()) {
+                    if (listener instanceof CacheEventListenerImpl && ((CacheEventListenerImpl) listener).getService() != null) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
     }
 }
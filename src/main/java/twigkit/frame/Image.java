@@ -14,9 +14,12 @@
  */
 package twigkit.frame;
 
+import twigkit.frame.resample.RasterPool;
+
 import java.awt.image.BufferedImage;
 import java.io.Serializable;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author mr.olafsson
@@ -43,16 +46,46 @@ public class Image implements Serializable {
 		public String getSuffix() {
 			return suffix;
 		}
+
+		/**
+		 * @return The content type for a file suffix or extension, UNKNOWN if not recognised
+		 */
+		public static ContentType forSuffix(String suffix) {
+			if (suffix != null && suffix.length() > 0) {
+				suffix = suffix.toLowerCase();
+				if (suffix.equals("jpeg")) {
+					return JPEG;
+				} else if (suffix.equals("tiff")) {
+					return TIFF;
+				}
+				for (ContentType type : values()) {
+					if (type.suffix.equals(suffix)) {
+						return type;
+					}
+				}
+			}
+			return UNKNOWN;
+		}
 	}
 	
 	private BufferedImage image;
 	private URL url;
 	private ContentType type;
+	private transient RasterPool pool;
+	private final AtomicInteger references = new AtomicInteger(1);
 
 	public Image(BufferedImage image) {
 		this.image = image;
 	}
 
+	/**
+	 * An image whose pixels are returned to the pool once it is released by all its holders.
+	 */
+	public Image(BufferedImage image, RasterPool pool) {
+		this.image = image;
+		this.pool = pool;
+	}
+
 	public BufferedImage getBufferedImage() {
 		return image;
 	}
@@ -84,4 +117,61 @@ public class Image implements Serializable {
 	public void setType(ContentType type) {
 		this.type = type;
 	}
+
+	public boolean isPooled() {
+		return pool != null;
+	}
+
+	/**
+	 * Adds a holder of the image, who must {@link #release()} it in turn.
+	 *
+	 * @return This image
+	 * @throws IllegalStateException If the image was already released
+	 */
+	public Image retain() {
+		if (!tryRetain()) {
+			throw new IllegalStateException("Image was released");
+		}
+		return this;
+	}
+
+	/**
+	 * Adds a holder of the image, unless it was already released.
+	 *
+	 * @return Whether the image is still usable
+	 */
+	public boolean tryRetain() {
+		for (;;) {
+			int count = references.get();
+			if (count <= 0) {
+				return false;
+			}
+			if (references.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Tells the image a holder no longer uses it. Once the creator and everyone who retained it have released it,
+	 * the pixels of a pooled image are reused and it must not be used again. Images not from a pool are left to the
+	 * garbage collector as usual.
+	 *
+	 * @return Whether the pixels went back to the pool
+	 */
+	public boolean release() {
+		if (pool == null) {
+			return false;
+		}
+		int count = references.decrementAndGet();
+		if (count == 0) {
+			BufferedImage released = image;
+			image = null;
+			return pool.release(released);
+		}
+		if (count < 0) {
+			throw new IllegalStateException("Image was released more often than retained");
+		}
+		return false;
+	}
 }
@@ -14,15 +14,68 @@
  */
 package twigkit.frame;
 
+import twigkit.frame.origin.HttpOriginFetcher;
+import twigkit.frame.origin.OriginFetcher;
+import twigkit.frame.util.TIFFDocument;
+
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.URL;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 
 /**
  * @author mr.olafsson
  */
 public class ImageIOService implements ImageService {
 
+    /**
+     * Subsampled images are kept at least this many times larger than the requested size, so that resizing can still
+     * interpolate rather than just drop pixels.
+     */
+    public static final int SUBSAMPLING_MARGIN = 2;
+
+    /**
+     * Writers kept for reuse per content type, at most one per processor, the rest are disposed of once written with.
+     */
+    private final Map<Image.ContentType, BlockingQueue<ImageWriter>> writers = new EnumMap<Image.ContentType, BlockingQueue<ImageWriter>>(Image.ContentType.class);
+
+    {
+        int maxIdleWriters = Runtime.getRuntime().availableProcessors();
+        for (Image.ContentType contentType : Image.ContentType.values()) {
+            writers.put(contentType, new ArrayBlockingQueue<ImageWriter>(maxIdleWriters));
+        }
+    }
+
+    private OriginFetcher originFetcher = HttpOriginFetcher.unbounded();
+
+    /**
+     * Sets how images are fetched from URLs, by default over {@link java.net.URLConnection} without timeouts or limits
+     * on size or connections, as {@link URL#openStream()} would. Set an {@link HttpOriginFetcher} with timeouts and
+     * limits to protect against slow or misbehaving origins.
+     */
+    public void setOriginFetcher(OriginFetcher originFetcher) {
+        this.originFetcher = originFetcher;
+    }
+
+    public OriginFetcher getOriginFetcher() {
+        return originFetcher;
+    }
+
     public Image fromURL(String urlAsString) throws IOException {
         if (urlAsString != null) {
             return fromURL(new URL(urlAsString));
@@ -32,16 +85,169 @@ public class ImageIOService implements ImageService {
     }
 
     public Image fromURL(URL url) throws IOException {
-        Image image = new Image(ImageIO.read(url));
+        Image image = from(originFetcher.fetch(url, null, null).getInputStream());
         image.setUrl(url);
 
         return image;
     }
 
+    public Image fromURL(URL url, int widthInPixels, int heightInPixels) throws IOException {
+        Image image = from(originFetcher.fetch(url, null, null).getInputStream(), widthInPixels, heightInPixels);
+        image.setUrl(url);
+
+        return image;
+    }
+
+    /**
+     * Fetches the encoded image through the origin fetcher, leaving the decoding to the task.
+     */
+    public Callable<Image> fetch(final URL url, final int widthInPixels, final int heightInPixels) throws IOException {
+        final byte[] bytes = originFetcher.fetch(url, null, null).getBody();
+        return () -> {
+            Image image = from(new ByteArrayInputStream(bytes), widthInPixels, heightInPixels);
+            image.setUrl(url);
+            return image;
+        };
+    }
+
     public Image from(InputStream inputStream) throws IOException {
         return new Image(ImageIO.read(inputStream));
     }
 
+    public Image from(InputStream inputStream, int widthInPixels, int heightInPixels) throws IOException {
+        if (widthInPixels <= 0 && heightInPixels <= 0) {
+            return from(inputStream);
+        }
+
+        ImageInputStream stream = ImageIO.createImageInputStream(inputStream);
+        if (stream == null) {
+            return from(inputStream);
+        }
+
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return new Image(null);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                setSourceRegion(param, reader.getWidth(0), reader.getHeight(0), widthInPixels, heightInPixels);
+
+                return new Image(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Reads no more of the image from the origin than the header, closing the connection once it is read.
+     */
+    public ImageInfo probe(URL url) throws IOException {
+        InputStream inputStream = originFetcher.open(url, null);
+        try {
+            return probe(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Asks the reader for the dimensions of the first image only, which readers answer from the header. The pages of
+     * a TIFF are counted by walking the chain of page headers with the same reader as {@link TIFFDocument}.
+     */
+    public ImageInfo probe(InputStream inputStream) throws IOException {
+        ImageInputStream stream = new MemoryCacheImageInputStream(inputStream);
+        Image.ContentType contentType;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                stream.close();
+                return null;
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                contentType = Image.ContentType.forSuffix(reader.getFormatName());
+                if (contentType != Image.ContentType.TIFF) {
+                    reader.setInput(stream, true, true);
+                    ImageInfo info = new ImageInfo(reader.getWidth(0), reader.getHeight(0), contentType, 1);
+                    stream.close();
+                    return info;
+                }
+            } finally {
+                reader.dispose();
+            }
+            stream.seek(0);
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+
+        //The document closes the stream
+        TIFFDocument document = new TIFFDocument(stream);
+        try {
+            return new ImageInfo(document.getWidth(0), document.getHeight(0), contentType, document.getPageCount());
+        } finally {
+            document.close();
+        }
+    }
+
+    /**
+     * Limits what is decoded to the region and resolution needed for resizing to the given dimensions. Mirrors the
+     * center cropping done by {@link BasicImageIOService#resize(Image, int, int)} when width and height are equal.
+     * When only one dimension is given, resizing works the other out from the decoded image, so the subsampling is
+     * kept to one that rounds it the same as the full image would.
+     */
+    protected void setSourceRegion(ImageReadParam param, int sourceWidth, int sourceHeight, int widthInPixels, int heightInPixels) {
+        int width = sourceWidth, height = sourceHeight;
+
+        if (widthInPixels == heightInPixels && sourceWidth != sourceHeight) {
+            int top = 0, left = 0;
+            if (width > height) {
+                left = (width - height) / 2;
+                width = height;
+            } else {
+                top = (height - width) / 2;
+                height = width;
+            }
+            param.setSourceRegion(new Rectangle(left, top, width, height));
+        }
+
+        int calcWidth = widthInPixels > 0 ? widthInPixels : (heightInPixels * width / height);
+        int calcHeight = heightInPixels > 0 ? heightInPixels : (widthInPixels * height / width);
+
+        if (calcWidth > 0 && calcHeight > 0) {
+            int subsampling = Math.min(width / calcWidth, height / calcHeight) / SUBSAMPLING_MARGIN;
+            while (subsampling > 1 && !isResizedExactly(width, height, subsampling, widthInPixels, heightInPixels, calcWidth, calcHeight)) {
+                subsampling--;
+            }
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+        }
+    }
+
+    /**
+     * @return Whether resizing the subsampled image gives the same dimensions as resizing the full one
+     */
+    private static boolean isResizedExactly(int width, int height, int subsampling, int widthInPixels, int heightInPixels, int calcWidth, int calcHeight) {
+        int subsampledWidth = (width + subsampling - 1) / subsampling;
+        int subsampledHeight = (height + subsampling - 1) / subsampling;
+        if (heightInPixels <= 0) {
+            return widthInPixels * subsampledHeight / subsampledWidth == calcHeight;
+        }
+        if (widthInPixels <= 0) {
+            return heightInPixels * subsampledWidth / subsampledHeight == calcWidth;
+        }
+        return true;
+    }
+
     public void write(Image image, File file) throws IOException {
         FileOutputStream outputStream = new FileOutputStream(file);
         write(image, outputStream);
@@ -54,8 +260,182 @@ public class ImageIOService implements ImageService {
     }
 
     public void write(Image image, OutputStream outputStream, Image.ContentType contentType) throws IOException {
-        if (image.getBufferedImage() != null) {
-            ImageIO.write(image.getBufferedImage(), contentType.getSuffix(), outputStream);
+        write(image, outputStream, contentType, new WriteOptions());
+    }
+
+    public void write(Image image, OutputStream outputStream, Image.ContentType contentType, float quality) throws IOException {
+        write(image, outputStream, contentType, new WriteOptions(quality, false));
+    }
+
+    /**
+     * Writes with a writer kept from an earlier write of the content type, rather than looking one up for every image,
+     * and encodes into memory rather than a temporary file whatever {@link ImageIO#getUseCache()} says.
+     * <p>
+     * As with {@link ImageIO#write(java.awt.image.RenderedImage, String, OutputStream)}, nothing is written if there
+     * is no writer for the content type. Nothing is passed on to the output stream either until the first
+     * {@link WriteOptions#getFlushBytes()} have been encoded, which is well past the header, so a write failing early
+     * leaves the stream untouched. A write failing after that leaves the part of the image passed on so far in the
+     * stream, so write to a temporary file or buffer where a partial image cannot be discarded.
+     */
+    public void write(Image image, OutputStream outputStream, Image.ContentType contentType, WriteOptions options) throws IOException {
+        if (image.getBufferedImage() == null) {
+            return;
+        }
+
+        BlockingQueue<ImageWriter> idle = writers.get(contentType);
+        ImageWriter writer = idle.poll();
+        if (writer == null) {
+            Iterator<ImageWriter> available = ImageIO.getImageWritersBySuffix(contentType.getSuffix());
+            if (!available.hasNext()) {
+                return;
+            }
+            writer = available.next();
+        }
+
+        BufferedImage buffered = image.getBufferedImage();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (contentType == Image.ContentType.JPEG) {
+            buffered = toOpaque(buffered);
+            if (options.getQuality() >= 0 && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(options.getQuality());
+            }
+        }
+        if (options.isProgressive() && param.canWriteProgressive()) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+
+        FlushingImageOutputStream stream = new FlushingImageOutputStream(outputStream, options.getFlushBytes(), contentType == Image.ContentType.JPEG);
+        boolean written = false;
+        try {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(buffered, null, null), param);
+            written = true;
+        } finally {
+            //Don't reuse a writer left in an unknown state
+            if (written) {
+                writer.reset();
+            } else {
+                stream.discard();
+            }
+            if (!written || !idle.offer(writer)) {
+                writer.dispose();
+            }
+            stream.close();
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Disposes of the writers kept for reuse, releasing their native resources and the classes they were loaded with,
+     * e.g. when the service is taken out of use. Writers are looked up again for any later writes.
+     */
+    public void disposeWriters() {
+        for (BlockingQueue<ImageWriter> idle : writers.values()) {
+            ImageWriter writer;
+            while ((writer = idle.poll()) != null) {
+                writer.dispose();
+            }
+        }
+    }
+
+    /**
+     * @return Number of writers kept for reuse
+     */
+    public int getIdleWriterCount() {
+        int count = 0;
+        for (BlockingQueue<ImageWriter> idle : writers.values()) {
+            count += idle.size();
+        }
+        return count;
+    }
+
+    /**
+     * Passes the bytes the writer has finished with on to the output stream as it goes, rather than holding the whole
+     * image in memory until it is closed. Writers that seek back, such as the PNG writer patching chunk lengths, say
+     * which bytes are final by flushing up to them. The JPEG writer only writes forward, so its bytes are passed on
+     * whenever enough have accumulated.
+     * <p>
+     * The first flush bytes, with the header, are held back, as is everything if flush bytes is zero or less. Held
+     * back bytes are passed on when the stream is closed, unless discarded.
+     */
+    private static class FlushingImageOutputStream extends MemoryCacheImageOutputStream {
+
+        private final OutputStream outputStream;
+        private final int flushBytes;
+        private final boolean forwardOnly;
+        private long flushed;
+        private boolean closing;
+        private boolean discarded;
+
+        private FlushingImageOutputStream(OutputStream outputStream, int flushBytes, boolean forwardOnly) {
+            super(outputStream);
+            this.outputStream = outputStream;
+            this.flushBytes = flushBytes;
+            this.forwardOnly = forwardOnly;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            super.write(b);
+            commit();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            commit();
+        }
+
+        private void commit() throws IOException {
+            if (forwardOnly && flushBytes > 0 && getStreamPosition() - getFlushedPosition() >= flushBytes) {
+                flushBefore(getStreamPosition());
+            }
+        }
+
+        @Override
+        public void flushBefore(long pos) throws IOException {
+            if (discarded || (!closing && (flushBytes <= 0 || pos < flushBytes))) {
+                return;
+            }
+            super.flushBefore(pos);
+            if (flushBytes > 0 && pos - flushed >= flushBytes) {
+                outputStream.flush();
+                flushed = pos;
+            }
+        }
+
+        /**
+         * Drops the bytes not yet passed on, rather than passing them on when closed.
+         */
+        private void discard() {
+            discarded = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closing = true;
+            super.close();
+        }
+    }
+
+    /**
+     * JPEG can't hold an alpha channel or a palette, so such images are drawn onto a white background first.
+     */
+    private BufferedImage toOpaque(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return image;
+            default:
+                BufferedImage opaque = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = opaque.createGraphics();
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, image.getWidth(), image.getHeight());
+                g.drawImage(image, 0, 0, null);
+                g.dispose();
+                return opaque;
         }
     }
 }
@@ -0,0 +1,83 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package twigkit.frame;
+
+import java.io.Serializable;
+
+/**
+ * Dimensions and format of an image, as read from its header by {@link ImageService#probe(java.io.InputStream)}.
+ *
+ * @author mr.olafsson
+ */
+public class ImageInfo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int width;
+    private final int height;
+    private final Image.ContentType contentType;
+    private final int pageCount;
+
+    public ImageInfo(int width, int height, Image.ContentType contentType, int pageCount) {
+        this.width = width;
+        this.height = height;
+        this.contentType = contentType;
+        this.pageCount = pageCount;
+    }
+
+    /**
+     * @return Width of the first page
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Height of the first page
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    public Image.ContentType getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return Number of pages of a TIFF, 1 for other formats
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageInfo)) {
+            return false;
+        }
+        ImageInfo info = (ImageInfo) o;
+        return width == info.width && height == info.height && contentType == info.contentType && pageCount == info.pageCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((width * 31 + height) * 31 + contentType.hashCode()) * 31 + pageCount;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + " " + contentType + (pageCount != 1 ? ", " + pageCount + " pages" : "");
+    }
+}
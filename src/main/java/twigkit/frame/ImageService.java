@@ -14,11 +14,15 @@
  */
 package twigkit.frame;
 
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.util.concurrent.Callable;
 
 /**
  * @author mr.olafsson
@@ -29,12 +33,88 @@ public interface ImageService {
 
 	Image fromURL(URL url) throws IOException;
 
+	/**
+	 * Reads the image, decoding only as many pixels as needed to resize it to the given dimensions afterwards. By
+	 * default the whole image is decoded.
+	 */
+	default Image fromURL(URL url, int widthInPixels, int heightInPixels) throws IOException {
+		return fromURL(url);
+	}
+
+	/**
+	 * Does the part of {@link #fromURL(URL, int, int)} that waits on the network or disk, returning the rest, which is
+	 * CPU bound, for the caller to run, e.g. on another thread. By default the encoded image is read from the URL and
+	 * decoded by the task.
+	 */
+	default Callable<Image> fetch(final URL url, final int widthInPixels, final int heightInPixels) throws IOException {
+		InputStream inputStream = url.openStream();
+		final byte[] bytes;
+		try {
+			bytes = IOUtils.toByteArray(inputStream);
+		} finally {
+			inputStream.close();
+		}
+		return () -> {
+			Image image = from(new ByteArrayInputStream(bytes), widthInPixels, heightInPixels);
+			image.setUrl(url);
+			return image;
+		};
+	}
+
 	Image from(InputStream inputStream) throws IOException;
 
+	/**
+	 * Reads the image, decoding only as many pixels as needed to resize it to the given dimensions afterwards. By
+	 * default the whole image is decoded.
+	 */
+	default Image from(InputStream inputStream, int widthInPixels, int heightInPixels) throws IOException {
+		return from(inputStream);
+	}
+
+	/**
+	 * Reads the dimensions and format of the image from its header, without decoding any pixels.
+	 *
+	 * @return The header information, or null if not an image in a readable format
+	 */
+	default ImageInfo probe(URL url) throws IOException {
+		InputStream inputStream = url.openStream();
+		try {
+			return probe(inputStream);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Reads the dimensions and format of the image from its header, without decoding any pixels. By default nothing
+	 * is read, for services that cannot read headers on their own.
+	 *
+	 * @return The header information, or null if not an image in a readable format
+	 */
+	default ImageInfo probe(InputStream inputStream) throws IOException {
+		return null;
+	}
+
 	void write(Image image, File file) throws IOException;
 
 	void write(Image image, OutputStream outputStream) throws IOException;
 
 	void write(Image image, OutputStream outputStream, Image.ContentType contentType) throws IOException;
+
+	/**
+	 * Writes the image with the given compression quality, between 0 and 1, if the content type is lossy. By default
+	 * the quality is left to the writer.
+	 */
+	default void write(Image image, OutputStream outputStream, Image.ContentType contentType, float quality) throws IOException {
+		write(image, outputStream, contentType);
+	}
+
+	/**
+	 * Writes the image with the given options, passing the encoded bytes on to the output stream as they are produced.
+	 * By default only the quality is used.
+	 */
+	default void write(Image image, OutputStream outputStream, Image.ContentType contentType, WriteOptions options) throws IOException {
+		write(image, outputStream, contentType, options.getQuality());
+	}
 	
 }
@@ -0,0 +1,37 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package twigkit.frame;
+
+/**
+ * Told about each image as a prefetch progresses. Called from the prefetching threads, so possibly concurrently.
+ *
+ * @author mr.olafsson
+ */
+public interface PrefetchListener {
+
+    /**
+     * @param request  The image now in the repository in all its sizes
+     * @param resized  Number of sizes that were not cached yet
+     * @param complete Number of requests finished so far, including failed ones
+     */
+    void onPrefetched(PrefetchRequest request, int resized, int complete);
+
+    /**
+     * @param request  The image that could not be fetched or resized
+     * @param e        What went wrong
+     * @param complete Number of requests finished so far, including failed ones
+     */
+    void onFailure(PrefetchRequest request, Exception e, int complete);
+}
@@ -0,0 +1,76 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package twigkit.frame;
+
+import java.awt.Dimension;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An image to bring into the offline repository ahead of it being asked for, along with the sizes it will be asked
+ * for in, see {@link CachedImageIOService#prefetch(List, int, PrefetchListener)}.
+ *
+ * @author mr.olafsson
+ */
+public class PrefetchRequest {
+
+    private final URL url;
+    private final Map<String, String> headers;
+    private final List<Dimension> sizes = new ArrayList<Dimension>();
+
+    public PrefetchRequest(URL url) {
+        this(url, null);
+    }
+
+    /**
+     * @param headers Request headers, which like for {@link CachedImageIOService#fromURL(URL, boolean, Map)} are part
+     *                of the cache key, or null
+     */
+    public PrefetchRequest(URL url, Map<String, String> headers) {
+        this.url = url;
+        this.headers = headers;
+    }
+
+    /**
+     * Adds a size to resize to, zero for either dimension keeping the aspect ratio as for
+     * {@link BasicImageService#resize(Image, int, int)}.
+     *
+     * @return This request
+     */
+    public PrefetchRequest addSize(int widthInPixels, int heightInPixels) {
+        sizes.add(new Dimension(widthInPixels, heightInPixels));
+        return this;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public List<Dimension> getSizes() {
+        return Collections.unmodifiableList(sizes);
+    }
+
+    @Override
+    public String toString() {
+        return url + " " + sizes.size() + " sizes";
+    }
+}
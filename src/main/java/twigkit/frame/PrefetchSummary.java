@@ -0,0 +1,101 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package twigkit.frame;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The outcome of a prefetch, see {@link CachedImageIOService#prefetch(java.util.List, int, PrefetchListener)}.
+ *
+ * @author mr.olafsson
+ */
+public class PrefetchSummary {
+
+    private final int requested;
+    private int prefetched;
+    private int resized;
+    private int alreadyCached;
+    private long elapsed;
+    private final Map<PrefetchRequest, Exception> failures = new LinkedHashMap<PrefetchRequest, Exception>();
+
+    PrefetchSummary(int requested) {
+        this.requested = requested;
+    }
+
+    synchronized void prefetched(int resized, int alreadyCached) {
+        this.prefetched++;
+        this.resized += resized;
+        this.alreadyCached += alreadyCached;
+    }
+
+    synchronized void failed(PrefetchRequest request, Exception e) {
+        failures.put(request, e);
+    }
+
+    synchronized void setElapsed(long elapsed) {
+        this.elapsed = elapsed;
+    }
+
+    public int getRequestedCount() {
+        return requested;
+    }
+
+    /**
+     * @return Number of requests whose sizes are all in the repository now
+     */
+    public synchronized int getPrefetchedCount() {
+        return prefetched;
+    }
+
+    /**
+     * @return Number of sizes resized and written to the repository
+     */
+    public synchronized int getResizedCount() {
+        return resized;
+    }
+
+    /**
+     * @return Number of sizes that were in the repository already
+     */
+    public synchronized int getAlreadyCachedCount() {
+        return alreadyCached;
+    }
+
+    public synchronized int getFailedCount() {
+        return failures.size();
+    }
+
+    /**
+     * @return What went wrong with each failed request, in the order they failed
+     */
+    public synchronized Map<PrefetchRequest, Exception> getFailures() {
+        return Collections.unmodifiableMap(new LinkedHashMap<PrefetchRequest, Exception>(failures));
+    }
+
+    /**
+     * @return Time taken in milliseconds
+     */
+    public synchronized long getElapsed() {
+        return elapsed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return prefetched + " of " + requested + " images prefetched, " + resized + " sizes resized, " + alreadyCached
+                + " already cached, " + failures.size() + " failed in " + elapsed + "ms";
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package twigkit.frame;
+
+/**
+ * How {@link ImageService#write(Image, java.io.OutputStream, Image.ContentType, WriteOptions)} encodes an image.
+ *
+ * @author mr.olafsson
+ */
+public class WriteOptions {
+
+    public static final int DEFAULT_FLUSH_BYTES = 64 * 1024;
+
+    private float quality = -1;
+    private boolean progressive;
+    private int flushBytes = DEFAULT_FLUSH_BYTES;
+
+    public WriteOptions() {
+    }
+
+    public WriteOptions(float quality, boolean progressive) {
+        this.quality = quality;
+        this.progressive = progressive;
+    }
+
+    /**
+     * Sets the compression quality of lossy formats, between 0 and 1. Negative leaves it to the writer.
+     */
+    public void setQuality(float quality) {
+        this.quality = quality;
+    }
+
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * Sets whether to write progressive JPEGs or interlaced PNGs, which browsers can show before they have all of.
+     */
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    /**
+     * Sets how many encoded bytes to pass on before flushing the output stream, so that the start of a large image
+     * reaches the client whilst the rest is still being encoded. Zero or less only flushes once the image is written.
+     */
+    public void setFlushBytes(int flushBytes) {
+        this.flushBytes = flushBytes;
+    }
+
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+}
@@ -0,0 +1,680 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import twigkit.frame.Image;
+import twigkit.frame.ImageInfo;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent record of the images in an offline repository, kept as an append-only log of one line per change. The
+ * log is replayed when opened, so the cache can be warmed on startup and its size known without listing the
+ * repository directory. It is rewritten with only the live entries once it holds more than twice as many records.
+ * <p>
+ * Entries are keyed by file name, the MD5 of the source followed by any size suffix, and are kept in least recently
+ * used order. The dimensions and format read from the header of a source are kept by source, until they are older
+ * than the given time to live or the last image produced from the source is removed. A record only partly written
+ * when the process died is skipped on replay, a log with an unknown header is started over.
+ * <p>
+ * Lookups do not lock. Changes are made in memory under the monitor of the index and their records queued, the thread
+ * that then gets hold of the log writes and flushes the records queued by all threads at once, outside the monitor.
+ * A change may therefore return before its record is on disk, it is written by the time the index is closed.
+ * <p>
+ * Only one index can be open on a log at a time, in this or any other process, held by a lock file next to it.
+ *
+ * @author mr.olafsson
+ */
+public class CacheIndex implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheIndex.class);
+
+    public static final String FILE_NAME = "frame.index";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String HEADER = "frame-index 1";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MIN_RECORDS_TO_COMPACT = 10000;
+    /**
+     * Accesses closer together than this are not written to the log, only kept in memory.
+     */
+    private static final long ACCESS_GRANULARITY = 60 * 1000;
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Map<String, Set<String>> sources = new ConcurrentHashMap<String, Set<String>>();
+    private final Map<String, Probe> probes = new ConcurrentHashMap<String, Probe>();
+    // Oldest first, so that expired ones are pruned from the head
+    private final Queue<Probe> probeOrder = new ConcurrentLinkedQueue<Probe>();
+    private final long probeTimeToLive;
+    // Orders entries by their last access
+    private final AtomicLong accesses = new AtomicLong();
+    private volatile long bytes;
+    private volatile int records;
+
+    // Records not yet written, and the lock held whilst writing them
+    private final Queue<String> pending = new ConcurrentLinkedQueue<String>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Writer writer;
+    private FileChannel lockChannel;
+
+    /**
+     * Opens the index, replaying the log if it exists. The dimensions and format of sources are kept until the last
+     * image produced from them is removed.
+     */
+    public CacheIndex(File file) throws IOException {
+        this(file, 0);
+    }
+
+    /**
+     * Opens the index, replaying the log if it exists.
+     *
+     * @param probeTimeToLive Milliseconds the dimensions and format of a source are kept for, 0 for no limit
+     * @throws IOException If the log cannot be read or is in use by another index
+     */
+    public CacheIndex(File file, long probeTimeToLive) throws IOException {
+        this.file = file;
+        this.probeTimeToLive = probeTimeToLive;
+        lock();
+        try {
+            boolean readable = !file.exists() || replay();
+            pruneProbes();
+            if (!readable) {
+                openWriter(false);
+            } else if (records > MIN_RECORDS_TO_COMPACT && records > 2 * (entries.size() + probes.size())) {
+                compact();
+            } else {
+                openWriter(file.exists());
+            }
+        } catch (IOException e) {
+            unlock();
+            throw e;
+        }
+        logger.info("Cache index " + file.getAbsolutePath() + " holds " + entries.size() + " images, " + bytes + " bytes");
+    }
+
+    /**
+     * An image in the repository.
+     */
+    public static class Entry {
+
+        private final String name;
+        private final long size;
+        private final int width;
+        private final int height;
+        private final Image.ContentType contentType;
+        private volatile long lastAccess;
+        private volatile long lastRecordedAccess;
+        private volatile long sequence;
+        private volatile Validators validators;
+
+        Entry(String name, long size, int width, int height, Image.ContentType contentType, long lastAccess) {
+            this.name = name;
+            this.size = size;
+            this.width = width;
+            this.height = height;
+            this.contentType = contentType;
+            this.lastAccess = lastAccess;
+            this.lastRecordedAccess = lastAccess;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The MD5 of the source URL and headers the image was produced from
+         */
+        public String getSource() {
+            return sourceOf(name);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public Image.ContentType getContentType() {
+            return contentType;
+        }
+
+        public long getLastAccess() {
+            return lastAccess;
+        }
+
+        /**
+         * @return The validators the origin sent with the image, or null if none or a derivative
+         */
+        public Validators getValidators() {
+            return validators;
+        }
+
+        /**
+         * @return Whether this is an original rather than a resized derivative
+         */
+        public boolean isOriginal() {
+            return name.indexOf('_') < 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + " [" + width + "x" + height + ", " + size + " bytes]";
+        }
+    }
+
+    public void put(String name, long size, int width, int height, Image.ContentType contentType) {
+        put(name, size, width, height, contentType, null);
+    }
+
+    /**
+     * @param validators The validators the origin sent with the image, or null
+     */
+    public void put(String name, long size, int width, int height, Image.ContentType contentType, Validators validators) {
+        Entry entry = new Entry(name, size, width, height, contentType, System.currentTimeMillis());
+        entry.validators = validators;
+        synchronized (this) {
+            add(entry);
+            append(record(entry));
+            if (validators != null) {
+                append(validatorsRecord(entry));
+            }
+        }
+        writePending();
+    }
+
+    /**
+     * Replaces the validators of an image, typically after the origin confirmed it has not changed.
+     */
+    public void setValidators(String name, Validators validators) {
+        synchronized (this) {
+            Entry entry = entries.get(name);
+            if (entry == null || validators == null) {
+                return;
+            }
+            entry.validators = validators;
+            append(validatorsRecord(entry));
+        }
+        writePending();
+    }
+
+    /**
+     * @return The entry, or null if not in the index. Does not count as an access.
+     */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Records that the image was read, moving it to the most recently used end of the index.
+     */
+    public void touch(String name) {
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            entry.sequence = accesses.incrementAndGet();
+            long now = System.currentTimeMillis();
+            entry.lastAccess = now;
+            if (now - entry.lastRecordedAccess > ACCESS_GRANULARITY) {
+                entry.lastRecordedAccess = now;
+                append("@ " + name + " " + now);
+                writePending();
+            }
+        }
+    }
+
+    /**
+     * @return The removed entry, or null if it was not in the index
+     */
+    public Entry remove(String name) {
+        Entry entry;
+        synchronized (this) {
+            entry = delete(name);
+            if (entry == null) {
+                return null;
+            }
+            append("- " + name);
+        }
+        writePending();
+        return entry;
+    }
+
+    /**
+     * @return All entries produced from the same source, the original and its derivatives
+     */
+    public List<Entry> getBySource(String source) {
+        Set<String> names = sources.get(source);
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        List<Entry> result = new ArrayList<Entry>(names.size());
+        for (String name : names) {
+            Entry entry = entries.get(name);
+            if (entry != null) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The original produced from the source, or null if not in the index
+     */
+    public Entry getOriginal(String source) {
+        Set<String> names = sources.get(source);
+        if (names != null) {
+            for (String name : names) {
+                Entry entry = entries.get(name);
+                if (entry != null && entry.isOriginal()) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the dimensions and format read from the header of a source, whether or not any image produced from it
+     * is in the repository.
+     */
+    public void setInfo(String source, ImageInfo info) {
+        Probe probe = new Probe(source, info, System.currentTimeMillis());
+        synchronized (this) {
+            probes.put(source, probe);
+            if (probeTimeToLive > 0) {
+                probeOrder.add(probe);
+            }
+            pruneProbes();
+            append(probeRecord(probe));
+        }
+        writePending();
+    }
+
+    /**
+     * @param since Time before which the information is considered out of date
+     * @return The dimensions and format of the source, or null if not recorded since the given time
+     */
+    public ImageInfo getInfo(String source, long since) {
+        Probe probe = probes.get(source);
+        if (probeTimeToLive > 0) {
+            since = Math.max(since, System.currentTimeMillis() - probeTimeToLive);
+        }
+        return probe != null && probe.time >= since ? probe.info : null;
+    }
+
+    /**
+     * @return A copy of the entries, least recently used first
+     */
+    public List<Entry> getEntries() {
+        List<Entry> copy = new ArrayList<Entry>(entries.values());
+        Collections.sort(copy, (a, b) -> Long.compare(a.sequence, b.sequence));
+        return copy;
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return Total size of the images in the index
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Rewrites the log with one record per live entry.
+     */
+    public synchronized void compact() throws IOException {
+        pruneProbes();
+        writeLock.lock();
+        try {
+            //Records still queued are reflected in the entries written out
+            pending.clear();
+            File compacted = new File(file.getParentFile(), file.getName() + ".tmp");
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compacted), UTF8));
+            try {
+                out.write(HEADER + "\n");
+                for (Entry entry : getEntries()) {
+                    out.write(record(entry) + "\n");
+                    if (entry.validators != null) {
+                        out.write(validatorsRecord(entry) + "\n");
+                    }
+                }
+                //Oldest first, as they are pruned on replay
+                List<Probe> oldest = new ArrayList<Probe>(probes.values());
+                Collections.sort(oldest, (a, b) -> Long.compare(a.time, b.time));
+                for (Probe probe : oldest) {
+                    out.write(probeRecord(probe) + "\n");
+                }
+            } finally {
+                out.close();
+            }
+
+            closeWriter();
+            try {
+                Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                records = entries.size() + probes.size();
+            } finally {
+                openWriter(file.exists());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        logger.debug("Compacted cache index {} to {} records", file.getAbsolutePath(), records);
+    }
+
+    public synchronized void close() throws IOException {
+        writeLock.lock();
+        try {
+            write();
+            closeWriter();
+        } finally {
+            writeLock.unlock();
+            unlock();
+        }
+    }
+
+    /**
+     * @return The MD5 prefix of a file name
+     */
+    public static String sourceOf(String name) {
+        int end = name.length();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '_' || c == '.') {
+                end = i;
+                break;
+            }
+        }
+        return name.substring(0, end);
+    }
+
+    private static String record(Entry entry) {
+        return "+ " + entry.name + " " + entry.size + " " + entry.width + " " + entry.height + " " + entry.contentType.name() + " " + entry.lastAccess;
+    }
+
+    private static String validatorsRecord(Entry entry) {
+        Validators validators = entry.validators;
+        String etag = "-";
+        if (validators.getETag() != null) {
+            try {
+                etag = URLEncoder.encode(validators.getETag(), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return "V " + entry.name + " " + etag + " " + validators.getLastModified() + " " + validators.getMaxAge() + " " + validators.getValidated();
+    }
+
+    private static String probeRecord(Probe probe) {
+        ImageInfo info = probe.info;
+        return "I " + probe.source + " " + info.getWidth() + " " + info.getHeight() + " " + info.getContentType().name() + " " + info.getPageCount() + " " + probe.time;
+    }
+
+    private void add(Entry entry) {
+        entry.sequence = accesses.incrementAndGet();
+        Entry previous = entries.put(entry.name, entry);
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += entry.size;
+
+        String source = entry.getSource();
+        Set<String> names = sources.get(source);
+        if (names == null) {
+            names = ConcurrentHashMap.newKeySet();
+            sources.put(source, names);
+        }
+        names.add(entry.name);
+    }
+
+    private Entry delete(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null) {
+            bytes -= entry.size;
+            String source = entry.getSource();
+            Set<String> names = sources.get(source);
+            if (names != null) {
+                names.remove(name);
+                if (names.isEmpty()) {
+                    sources.remove(source);
+                    probes.remove(source);
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * @return False if the log has an unknown header and has to be started over
+     */
+    private boolean replay() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.equals(HEADER)) {
+                logger.warn("Rewriting cache index {} with unknown header {}", file.getAbsolutePath(), line);
+                return false;
+            }
+            while ((line = reader.readLine()) != null) {
+                records++;
+                String[] fields = line.split(" ");
+                try {
+                    if (fields[0].equals("+") && fields.length == 7) {
+                        add(new Entry(fields[1], Long.parseLong(fields[2]), Integer.parseInt(fields[3]), Integer.parseInt(fields[4]),
+                                Image.ContentType.valueOf(fields[5]), Long.parseLong(fields[6])));
+                    } else if (fields[0].equals("V") && fields.length == 6) {
+                        Entry entry = entries.get(fields[1]);
+                        if (entry != null) {
+                            entry.validators = new Validators(fields[2].equals("-") ? null : URLDecoder.decode(fields[2], "UTF-8"),
+                                    Long.parseLong(fields[3]), Long.parseLong(fields[4]), Long.parseLong(fields[5]));
+                        }
+                    } else if (fields[0].equals("I") && fields.length == 7) {
+                        Probe probe = new Probe(fields[1], new ImageInfo(Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                                Image.ContentType.valueOf(fields[4]), Integer.parseInt(fields[5])), Long.parseLong(fields[6]));
+                        probes.put(probe.source, probe);
+                        if (probeTimeToLive > 0) {
+                            probeOrder.add(probe);
+                        }
+                    } else if (fields[0].equals("-") && fields.length == 2) {
+                        delete(fields[1]);
+                    } else if (fields[0].equals("@") && fields.length == 3) {
+                        Entry entry = entries.get(fields[1]);
+                        if (entry != null) {
+                            entry.sequence = accesses.incrementAndGet();
+                            entry.lastAccess = entry.lastRecordedAccess = Long.parseLong(fields[2]);
+                        }
+                    } else if (logger.isTraceEnabled()) {
+                        logger.trace("Skipping cache index record [" + line + "]");
+                    }
+                } catch (IllegalArgumentException e) {
+                    logger.trace("Skipping malformed cache index record");
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return true;
+    }
+
+    /**
+     * Queues the record to be written by {@link #writePending()}, which has to be called outside the monitor.
+     */
+    private void append(String record) {
+        pending.add(record);
+    }
+
+    /**
+     * Writes the queued records unless another thread is already doing so, in which case it writes them instead.
+     */
+    private void writePending() {
+        //Check again once the lock is released, another thread may have queued a record whilst it was held
+        while (!pending.isEmpty() && writeLock.tryLock()) {
+            try {
+                write();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        if (records > MIN_RECORDS_TO_COMPACT && records > 2 * (entries.size() + probes.size())) {
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Writes and flushes the queued records, with the write lock held.
+     */
+    private void write() {
+        if (writer == null) {
+            pending.clear();
+            return;
+        }
+        try {
+            String record;
+            int written = 0;
+            while ((record = pending.poll()) != null) {
+                writer.write(record);
+                writer.write('\n');
+                written++;
+            }
+            writer.flush();
+            records += written;
+        } catch (IOException e) {
+            logger.error("Failed to write to cache index {}: {}", file.getAbsolutePath(), e);
+        }
+    }
+
+    private synchronized void compactIfNeeded() {
+        pruneProbes();
+        if (writer != null && records > MIN_RECORDS_TO_COMPACT && records > 2 * (entries.size() + probes.size())) {
+            try {
+                compact();
+            } catch (IOException e) {
+                logger.error("Failed to compact cache index {}: {}", file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Drops the dimensions and format of sources that are older than their time to live.
+     */
+    private void pruneProbes() {
+        if (probeTimeToLive <= 0) {
+            return;
+        }
+        long expired = System.currentTimeMillis() - probeTimeToLive;
+        Probe oldest;
+        while ((oldest = probeOrder.peek()) != null && oldest.time < expired) {
+            probeOrder.poll();
+            //Unless replaced by a newer one since
+            probes.remove(oldest.source, oldest);
+        }
+    }
+
+    private static final class Probe {
+
+        private final String source;
+        private final ImageInfo info;
+        private final long time;
+
+        private Probe(String source, ImageInfo info, long time) {
+            this.source = source;
+            this.info = info;
+            this.time = time;
+        }
+    }
+
+    private void lock() throws IOException {
+        FileChannel channel = FileChannel.open(new File(file.getPath() + LOCK_SUFFIX).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Cache index " + file.getAbsolutePath() + " is in use by another index");
+        }
+        lockChannel = channel;
+    }
+
+    private void unlock() throws IOException {
+        if (lockChannel != null) {
+            //Closing the channel releases the lock
+            lockChannel.close();
+            lockChannel = null;
+        }
+    }
+
+    private void openWriter(boolean exists) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, exists), UTF8));
+        if (!exists) {
+            writer.write(HEADER + "\n");
+            writer.flush();
+        }
+    }
+
+    private void closeWriter() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+}
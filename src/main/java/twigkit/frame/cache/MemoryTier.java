@@ -0,0 +1,143 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of encoded images, bounded by the total number of bytes held rather than the number of
+ * entries. Entries larger than an eighth of the budget are not held, so that a few large originals cannot push out
+ * all the small derivatives.
+ * <p>
+ * Off-heap, entries are copied into direct buffers, which keeps them out of the garbage collected heap. Their memory
+ * is released when the buffer is collected after eviction.
+ *
+ * @author mr.olafsson
+ */
+public class MemoryTier {
+
+    private final long maxBytes;
+    private final boolean offHeap;
+
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes Total size of the entries held
+     * @param offHeap  Whether to hold entries in direct buffers
+     */
+    public MemoryTier(long maxBytes, boolean offHeap) {
+        this.maxBytes = maxBytes;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * @return A read-only view of the encoded image, or null if not held
+     */
+    public ByteBuffer get(String key) {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = entries.get(key);
+        }
+
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return Whether an entry of the given size would be held
+     */
+    public boolean accepts(long length) {
+        return length <= maxBytes / 8;
+    }
+
+    public void put(String key, byte[] data) {
+        if (!accepts(data.length)) {
+            remove(key);
+            return;
+        }
+
+        ByteBuffer buffer;
+        if (offHeap) {
+            buffer = ByteBuffer.allocateDirect(data.length);
+            buffer.put(data);
+            buffer.flip();
+        } else {
+            buffer = ByteBuffer.wrap(data);
+        }
+
+        synchronized (this) {
+            ByteBuffer previous = entries.put(key, buffer);
+            if (previous != null) {
+                bytes -= previous.capacity();
+            }
+            bytes += data.length;
+
+            Iterator<Map.Entry<String, ByteBuffer>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().capacity();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized void remove(String key) {
+        ByteBuffer previous = entries.remove(key);
+        if (previous != null) {
+            bytes -= previous.capacity();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+}
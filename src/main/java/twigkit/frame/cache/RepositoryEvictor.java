@@ -0,0 +1,217 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the images in an offline repository within a budget of bytes on disk, going by the sizes recorded in its
+ * {@link CacheIndex}. Once a write takes the repository over budget, a batch of the least recently used images is
+ * evicted in the background, bringing it down to nine tenths of the budget so that every write near the limit does
+ * not trigger another pass.
+ * <p>
+ * Files the cache drops are also deleted from the repository in the background, so as not to hold up the thread that
+ * caused it. Expired files may be kept for a while first, for as long as the {@link Retention} says.
+ *
+ * @author mr.olafsson
+ */
+public class RepositoryEvictor {
+
+    private static final Logger logger = LoggerFactory.getLogger(RepositoryEvictor.class);
+
+    /**
+     * Removes an image from the cache and the repository.
+     */
+    public interface Remover {
+
+        void remove(CacheIndex.Entry entry);
+    }
+
+    /**
+     * Decides how long an expired file is kept in the repository.
+     */
+    public interface Retention {
+
+        /**
+         * @return Time until which the file is kept, or 0 if it is deleted straight away
+         */
+        long getRetainedUntil(File file);
+    }
+
+    private final CacheIndex index;
+    private volatile long maxBytes;
+    private final ScheduledExecutorService executor;
+    private final Remover remover;
+    private final Retention retention;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+
+    /**
+     * @param index    Index of the repository, in least recently used order
+     * @param maxBytes Total size the images in the repository may take up
+     * @param executor Runs the eviction passes
+     * @param remover  Removes each evicted image
+     */
+    public RepositoryEvictor(CacheIndex index, long maxBytes, ScheduledExecutorService executor, Remover remover) {
+        this(index, maxBytes, executor, remover, null);
+    }
+
+    /**
+     * @param index     Index of the repository, in least recently used order, or null if sizes are not known
+     * @param maxBytes  Total size the images in the repository may take up, 0 for no limit
+     * @param executor  Runs the eviction passes and deletes files, dropping delayed deletes on shutdown so that files
+     *                  kept past expiry are left for the next start to delete
+     * @param remover   Removes each evicted image
+     * @param retention How long expired files are kept, or null to delete them on expiry
+     */
+    public RepositoryEvictor(CacheIndex index, long maxBytes, ScheduledExecutorService executor, Remover remover, Retention retention) {
+        this.index = index;
+        this.maxBytes = maxBytes;
+        this.executor = executor;
+        this.remover = remover;
+        this.retention = retention;
+    }
+
+    /**
+     * Schedules an eviction pass if the repository is over budget and none is scheduled already.
+     */
+    public void check() {
+        if (index != null && maxBytes > 0 && index.getBytes() > maxBytes && scheduled.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                try {
+                    evict();
+                } finally {
+                    scheduled.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Evicts the least recently used images until the repository is down to nine tenths of its budget.
+     */
+    public void evict() {
+        if (index == null || maxBytes <= 0) {
+            return;
+        }
+        long target = maxBytes / 10 * 9;
+        long bytes = index.getBytes();
+        if (bytes <= maxBytes) {
+            return;
+        }
+
+        int count = 0;
+        long freed = 0;
+        for (CacheIndex.Entry entry : index.getEntries()) {
+            if (bytes - freed <= target) {
+                break;
+            }
+            try {
+                remover.remove(entry);
+                freed += entry.getSize();
+                count++;
+            } catch (RuntimeException e) {
+                logger.warn("Failed to evict {} from the repository: {}", entry.getName(), e);
+            }
+        }
+
+        evictions.addAndGet(count);
+        evictedBytes.addAndGet(freed);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Evicted " + count + " images, " + freed + " bytes, from repository of " + bytes + " bytes");
+        }
+    }
+
+    /**
+     * Deletes a file the cache dropped, or keeps it if expired and the retention says so, until it has passed.
+     *
+     * @param expired Whether the file expired, rather than being removed or evicted
+     * @return Whether the file is being deleted
+     */
+    public boolean delete(final File file, boolean expired) {
+        if (!file.exists()) {
+            return false;
+        }
+        long delay = expired && retention != null ? retention.getRetainedUntil(file) - System.currentTimeMillis() : 0;
+        if (delay > 0) {
+            executor.schedule(() -> {
+                //Not if it was revalidated or written again meanwhile
+                if (file.exists() && System.currentTimeMillis() >= retention.getRetainedUntil(file)) {
+                    deleteNow(file);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            return false;
+        }
+
+        executor.execute(() -> {
+            if (file.exists()) {
+                deleteNow(file);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Completes the eviction passes and deletes under way.
+     *
+     * @return Whether they completed in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    private void deleteNow(File file) {
+        if (index != null) {
+            index.remove(file.getName());
+        }
+        file.delete();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes Total size the images in the repository may take up, 0 for no limit
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        check();
+    }
+
+    /**
+     * @return Total size of the images in the repository, or -1 if not known
+     */
+    public long getBytes() {
+        return index != null ? index.getBytes() : -1;
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+}
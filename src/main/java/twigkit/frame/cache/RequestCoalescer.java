@@ -0,0 +1,99 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure only one thread at a time loads the value for a given key. Threads asking for a key that is already
+ * being loaded wait for the result of the thread that got there first, instead of loading it again.
+ * <p>
+ * Values are not retained once the load completes, so this is not a cache in itself, it only de-duplicates
+ * concurrent work.
+ *
+ * @author mr.olafsson
+ */
+public class RequestCoalescer<V> {
+
+    private final ConcurrentMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Runs the loader for the given key, or waits for the loader already running for it.
+     *
+     * @param key    Identifies the work being done
+     * @param loader Computes the value, only called if no other thread is currently loading the key
+     * @return The value computed by this or a concurrent caller
+     * @throws Exception Whatever the loader threw, rethrown in every waiting thread
+     */
+    public V execute(String key, Callable<V> loader) throws Exception {
+        FutureTask<V> task = new FutureTask<V>(loader);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+
+        if (existing == null) {
+            executed.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+            return getResult(task);
+        }
+
+        coalesced.incrementAndGet();
+        return getResult(existing);
+    }
+
+    private V getResult(FutureTask<V> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return Number of loads actually executed
+     */
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * @return Number of requests that were served by waiting on another thread's load
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return Number of keys currently being loaded
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.cache;
+
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+
+/**
+ * The validators an origin sent with an image, used to ask it whether the image has changed rather than fetching it
+ * again. An image is fresh, and used without asking, for as long as the Cache-Control max-age allows.
+ *
+ * @author mr.olafsson
+ */
+public class Validators {
+
+    private final String etag;
+    private final long lastModified;
+    private final long maxAge;
+    private final long validated;
+
+    /**
+     * @param etag         Entity tag, or null
+     * @param lastModified Last-Modified time in milliseconds, or 0
+     * @param maxAge       Seconds the image may be used without revalidating, or -1 if not given
+     * @param validated    When the origin last confirmed the image, in milliseconds
+     */
+    public Validators(String etag, long lastModified, long maxAge, long validated) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.maxAge = maxAge;
+        this.validated = validated;
+    }
+
+    /**
+     * @return The validators of the response, or null if it has neither an ETag nor a Last-Modified time
+     */
+    public static Validators from(URLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        long lastModified = connection.getLastModified();
+        if (etag == null && lastModified <= 0) {
+            return null;
+        }
+        return new Validators(etag, lastModified, getMaxAge(connection.getHeaderField("Cache-Control")), System.currentTimeMillis());
+    }
+
+    /**
+     * Makes the request conditional on the image having changed.
+     */
+    public void apply(URLConnection connection) {
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified > 0) {
+            connection.setIfModifiedSince(lastModified);
+        }
+    }
+
+    /**
+     * @return Whether the response to a conditional request says the image has not changed. Connections other than
+     * HTTP, such as to files, ignore conditions and are compared by their last modified time instead.
+     */
+    public boolean isNotModified(URLConnection connection) throws java.io.IOException {
+        if (connection instanceof HttpURLConnection) {
+            return ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+        return lastModified > 0 && connection.getLastModified() == lastModified;
+    }
+
+    /**
+     * @return Whether the image can still be used without asking the origin
+     */
+    public boolean isFresh(long now) {
+        return maxAge > 0 && now < validated + maxAge * 1000;
+    }
+
+    /**
+     * @return The same validators, confirmed by the origin at the given time
+     */
+    public Validators revalidated(long now) {
+        return new Validators(etag, lastModified, maxAge, now);
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    public long getValidated() {
+        return validated;
+    }
+
+    /**
+     * @return Whether the origin asked for the response not to be stored, by Cache-Control no-store
+     */
+    public static boolean isNoStore(URLConnection connection) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                if (directive.trim().equalsIgnoreCase("no-store")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static long getMaxAge(String cacheControl) {
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return 0;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return Long.parseLong(directive.substring(8).trim());
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs cache writes on a bounded pool of background threads so the requesting thread does not wait for them. Until a
+ * write completes, the value being written can be looked up by its key.
+ * <p>
+ * When the queue is full, writes are either dropped, leaving the value uncached, or the submitting thread blocks until
+ * there is room, depending on the {@link Policy}.
+ *
+ * @author mr.olafsson
+ */
+public class WriteBehind<V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehind.class);
+
+    public enum Policy {
+        DROP, BLOCK
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, V> pending = new ConcurrentHashMap<String, V>();
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param threads   Number of threads writing
+     * @param queueSize Number of writes that can wait for a thread
+     * @param policy    What to do with writes when the queue is full
+     */
+    public WriteBehind(int threads, int queueSize, Policy policy) {
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "frame-write-behind-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (policy == Policy.BLOCK) {
+            executor.setRejectedExecutionHandler((runnable, executor) -> {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("Write-behind has been shut down");
+                }
+                try {
+                    executor.getQueue().put(runnable);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted whilst waiting to queue cache write");
+                }
+                //Shut down whilst waiting, the threads may have finished the queue and gone already
+                if (executor.isShutdown() && executor.getQueue().remove(runnable)) {
+                    throw new RejectedExecutionException("Write-behind has been shut down");
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues the write of a value.
+     *
+     * @return Whether the write was queued, false if it was dropped
+     */
+    public boolean submit(final String key, final V value, final Runnable write) {
+        pending.put(key, value);
+        try {
+            executor.execute(() -> {
+                try {
+                    write.run();
+                    written.incrementAndGet();
+                } catch (RuntimeException e) {
+                    logger.error("Failed to write " + key + " to cache", e);
+                } finally {
+                    pending.remove(key, value);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(key, value);
+            dropped.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Dropped cache write of " + key + ": " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return The value still waiting to be written for the key, or null
+     */
+    public V getPending(String key) {
+        return pending.get(key);
+    }
+
+    /**
+     * Stops accepting writes and waits for the queued ones to complete.
+     *
+     * @return Whether all writes completed within the timeout
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,434 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.origin;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import twigkit.frame.cache.Validators;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches images over {@link URLConnection}, with timeouts, a limit on the size of an image and on the number of
+ * concurrent requests to each host, and latency metrics per host.
+ * <p>
+ * Responses are always read to the end and closed, never disconnected, so that the JDK keeps HTTP connections alive
+ * and reuses them for the next request to the same host. The number of idle connections kept per host is set by the
+ * {@code http.maxConnections} system property, 5 by default.
+ *
+ * @author mr.olafsson
+ */
+public class HttpOriginFetcher implements OriginFetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpOriginFetcher.class);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+    /**
+     * Largest image that can be read into a byte array, larger limits are lowered to it.
+     */
+    public static final long MAX_BYTES_LIMIT = Integer.MAX_VALUE - 8;
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long maxBytes;
+    private final int maxConnectionsPerHost;
+
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+
+    public HttpOriginFetcher() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_BYTES, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * @param connectTimeout        Milliseconds to wait for a connection, and for a turn when the host is at its limit,
+     *                              0 to wait indefinitely
+     * @param readTimeout           Milliseconds to wait for data whilst reading a response, 0 to wait indefinitely
+     * @param maxBytes              Largest image accepted, larger ones fail without being read in full. At most
+     *                              {@link #MAX_BYTES_LIMIT}, which is also the limit if 0
+     * @param maxConnectionsPerHost Number of requests to the same host at the same time, 0 for no limit
+     */
+    public HttpOriginFetcher(int connectTimeout, int readTimeout, long maxBytes, int maxConnectionsPerHost) {
+        if (connectTimeout < 0 || readTimeout < 0 || maxBytes < 0 || maxConnectionsPerHost < 0) {
+            throw new IllegalArgumentException("Timeouts and limits of the origin fetcher cannot be negative");
+        }
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.maxBytes = maxBytes > 0 ? Math.min(maxBytes, MAX_BYTES_LIMIT) : MAX_BYTES_LIMIT;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * @return A fetcher without timeouts or limits other than {@link #MAX_BYTES_LIMIT}, as reading from the URL
+     * directly, which still keeps metrics per host
+     */
+    public static HttpOriginFetcher unbounded() {
+        return new HttpOriginFetcher(0, 0, 0, 0);
+    }
+
+    /**
+     * Requests made to a host and how long they took.
+     */
+    public static class HostMetrics {
+
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong notModified = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            requests.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // Retry until the larger value sticks
+            }
+        }
+
+        public long getRequestCount() {
+            return requests.get();
+        }
+
+        public long getFailureCount() {
+            return failures.get();
+        }
+
+        public long getNotModifiedCount() {
+            return notModified.get();
+        }
+
+        /**
+         * @return Total size of the images fetched
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public double getMeanLatencyMillis() {
+            long count = requests.get();
+            return count > 0 ? totalNanos.get() / 1e6 / count : 0;
+        }
+
+        public double getMaxLatencyMillis() {
+            return maxNanos.get() / 1e6;
+        }
+    }
+
+    private class Host {
+
+        private final Semaphore permits = maxConnectionsPerHost > 0 ? new Semaphore(maxConnectionsPerHost, true) : null;
+        private final HostMetrics metrics = new HostMetrics();
+    }
+
+    public OriginResponse fetch(URL url, Map<String, String> headers, Validators validators) throws IOException {
+        Host host = getHost(url);
+        acquire(host, url);
+
+        long start = System.nanoTime();
+        try {
+            OriginResponse response = request(url, headers, validators);
+            if (response.isNotModified()) {
+                host.metrics.notModified.incrementAndGet();
+            } else {
+                host.metrics.bytes.addAndGet(response.getBody().length);
+            }
+            return response;
+        } catch (IOException e) {
+            host.metrics.failures.incrementAndGet();
+            throw e;
+        } finally {
+            host.metrics.record(System.nanoTime() - start);
+            release(host);
+        }
+    }
+
+    /**
+     * Opens the image to be read as it arrives, holding one of the connections to the host until the stream is
+     * closed. Reading more than the limit on the size of an image fails. Closing the stream before the end disconnects,
+     * rather than reading the rest of a large image only to reuse the connection.
+     */
+    @Override
+    public InputStream open(URL url, Map<String, String> headers) throws IOException {
+        Host host = getHost(url);
+        acquire(host, url);
+
+        long start = System.nanoTime();
+        try {
+            URLConnection connection = connect(url, headers, null);
+            return new ResponseStream(connection, host, start);
+        } catch (IOException e) {
+            host.metrics.failures.incrementAndGet();
+            host.metrics.record(System.nanoTime() - start);
+            release(host);
+            throw e;
+        }
+    }
+
+    /**
+     * @return Metrics of the host, or null if no request has been made to it
+     */
+    public HostMetrics getMetrics(String host) {
+        Host metrics = hosts.get(host);
+        return metrics != null ? metrics.metrics : null;
+    }
+
+    /**
+     * @return The hosts requests have been made to, as host and port, e.g. {@code images.example.com:80}
+     */
+    public Iterable<String> getHosts() {
+        return Collections.unmodifiableSet(hosts.keySet());
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    private void acquire(Host host, URL url) throws IOException {
+        if (host.permits == null) {
+            return;
+        }
+        try {
+            if (connectTimeout == 0) {
+                host.permits.acquire();
+            } else if (!host.permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+                host.metrics.failures.incrementAndGet();
+                throw new IOException("Timed out waiting for one of " + maxConnectionsPerHost + " connections to " + getHostName(url));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException("Interrupted waiting for a connection to " + getHostName(url));
+        }
+    }
+
+    private void release(Host host) {
+        if (host.permits != null) {
+            host.permits.release();
+        }
+    }
+
+    private OriginResponse request(URL url, Map<String, String> headers, Validators validators) throws IOException {
+        URLConnection connection = connect(url, headers, validators);
+        if (validators != null && validators.isNotModified(connection)) {
+            drain(connection instanceof HttpURLConnection ? null : connection.getInputStream());
+            return new OriginResponse(null, validators, connection.getContentType());
+        }
+
+        long length = connection.getContentLengthLong();
+        if (length > maxBytes) {
+            disconnect(connection);
+            throw new IOException("Image of " + length + " bytes at " + url + " exceeds the limit of " + maxBytes);
+        }
+
+        InputStream inputStream = connection.getInputStream();
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(length > 0 ? (int) length : 8192);
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                total += read;
+                if (total > maxBytes) {
+                    disconnect(connection);
+                    throw new IOException("Image at " + url + " exceeds the limit of " + maxBytes + " bytes");
+                }
+                body.write(buffer, 0, read);
+            }
+
+            if (logger.isTraceEnabled()) {
+                logger.trace("Fetched " + total + " bytes from " + url);
+            }
+            return new OriginResponse(body.toByteArray(), Validators.from(connection), connection.getContentType(), !Validators.isNoStore(connection));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Opens the connection, failing if the origin responded with an error.
+     */
+    private URLConnection connect(URL url, Map<String, String> headers, Validators validators) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        if (validators != null) {
+            validators.apply(connection);
+        }
+
+        if (connection instanceof HttpURLConnection) {
+            HttpURLConnection http = (HttpURLConnection) connection;
+            int status = http.getResponseCode();
+            if (status >= 400) {
+                drain(http.getErrorStream());
+                throw new IOException("Origin responded " + status + " to " + url);
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * A response read as it arrives, counted towards the metrics of its host when closed.
+     */
+    private class ResponseStream extends FilterInputStream {
+
+        private final URLConnection connection;
+        private final Host host;
+        private final long start;
+        private long total;
+        private boolean ended;
+        private boolean closed;
+
+        private ResponseStream(URLConnection connection, Host host, long start) throws IOException {
+            super(connection.getInputStream());
+            this.connection = connection;
+            this.host = host;
+            this.start = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            count(b < 0 ? -1 : 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            count(read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long read) throws IOException {
+            if (read < 0) {
+                ended = true;
+                return;
+            }
+            total += read;
+            if (total > maxBytes) {
+                throw new IOException("Image at " + connection.getURL() + " exceeds the limit of " + maxBytes + " bytes");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                //Not worth reading the rest of the image to keep the connection
+                if (!ended) {
+                    disconnect(connection);
+                }
+                super.close();
+            } finally {
+                host.metrics.bytes.addAndGet(total);
+                host.metrics.record(System.nanoTime() - start);
+                release(host);
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Read " + total + " bytes from " + connection.getURL());
+                }
+            }
+        }
+    }
+
+    private Host getHost(URL url) {
+        String name = getHostName(url);
+        Host host = hosts.get(name);
+        if (host == null) {
+            Host created = new Host();
+            host = hosts.putIfAbsent(name, created);
+            if (host == null) {
+                host = created;
+            }
+        }
+        return host;
+    }
+
+    private static String getHostName(URL url) {
+        if (url.getHost() == null || url.getHost().length() == 0) {
+            return url.getProtocol();
+        }
+        return url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+
+    /**
+     * Reads what is left of a response, so that its connection can be reused.
+     */
+    private static void drain(InputStream inputStream) {
+        if (inputStream == null) {
+            return;
+        }
+        try {
+            try {
+                byte[] buffer = new byte[8192];
+                while (inputStream.read(buffer) != -1) {
+                    // Discard
+                }
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            logger.trace("Failed to read the rest of a response");
+        }
+    }
+
+    private static void disconnect(URLConnection connection) {
+        if (connection instanceof HttpURLConnection) {
+            ((HttpURLConnection) connection).disconnect();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.origin;
+
+import twigkit.frame.cache.Validators;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Fetches the encoded bytes of original images from where they are published.
+ *
+ * @author mr.olafsson
+ */
+public interface OriginFetcher {
+
+    /**
+     * @param url        Location of the image
+     * @param headers    Request headers to send, or null
+     * @param validators Validators of a copy already held, making the request conditional, or null
+     * @return The response, which is not modified, without a body, if the validators show the copy is current
+     */
+    OriginResponse fetch(URL url, Map<String, String> headers, Validators validators) throws IOException;
+
+    /**
+     * Opens the image to be read as it arrives, e.g. to read no more than its header. The stream has to be closed,
+     * which ends the request. By default the whole image is fetched first.
+     *
+     * @param url     Location of the image
+     * @param headers Request headers to send, or null
+     */
+    default InputStream open(URL url, Map<String, String> headers) throws IOException {
+        return fetch(url, headers, null).getInputStream();
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.origin;
+
+import twigkit.frame.cache.Validators;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * An image fetched by an {@link OriginFetcher}, read in full.
+ *
+ * @author mr.olafsson
+ */
+public class OriginResponse {
+
+    private final byte[] body;
+    private final Validators validators;
+    private final String contentType;
+    private final boolean storable;
+
+    /**
+     * @param body        The encoded image, or null if not modified
+     * @param validators  Validators the origin sent, or null
+     * @param contentType Content type the origin sent, or null
+     */
+    public OriginResponse(byte[] body, Validators validators, String contentType) {
+        this(body, validators, contentType, true);
+    }
+
+    /**
+     * @param storable False if the origin asked for the image not to be stored
+     */
+    public OriginResponse(byte[] body, Validators validators, String contentType, boolean storable) {
+        this.body = body;
+        this.validators = validators;
+        this.contentType = contentType;
+        this.storable = storable;
+    }
+
+    /**
+     * @return Whether the conditional request found the copy held to be current, in which case there is no body
+     */
+    public boolean isNotModified() {
+        return body == null;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(body);
+    }
+
+    public Validators getValidators() {
+        return validators;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return False if the origin sent Cache-Control no-store, in which case neither the image nor anything produced
+     * from it is kept
+     */
+    public boolean isStorable() {
+        return storable;
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.pipeline;
+
+import twigkit.frame.Image;
+
+import java.util.Locale;
+
+/**
+ * A step of a {@link Pipeline}. Steps are immutable and their string form is canonical, so that equal pipelines have
+ * equal cache keys.
+ *
+ * @author mr.olafsson
+ */
+public abstract class Operation {
+
+    Operation() {
+    }
+
+    /**
+     * Keeps the given rectangle of the image, clipped to its bounds.
+     */
+    public static Crop crop(int x, int y, int width, int height) {
+        return new Crop(x, y, width, height);
+    }
+
+    /**
+     * Resizes like {@link twigkit.frame.BasicImageService#resize(Image, int, int)}: keeping the aspect ratio when
+     * only the width or height is given, center cropping to a square when they are equal and stretching otherwise.
+     */
+    public static Resize resize(int width, int height) {
+        return new Resize(width, height);
+    }
+
+    /**
+     * Rotates clockwise. Multiples of 90 degrees move pixels exactly, other angles enlarge the image to fit.
+     */
+    public static Rotate rotate(int degrees) {
+        return new Rotate(degrees);
+    }
+
+    /**
+     * Sets the format and compression quality the result is written in. Must be the last step.
+     */
+    public static Encode encode(Image.ContentType contentType, float quality) {
+        return new Encode(contentType, quality);
+    }
+
+    public static final class Crop extends Operation {
+
+        private final int x, y, width, height;
+
+        Crop(int x, int y, int width, int height) {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("Crop must have a positive width and height");
+            }
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public String toString() {
+            return "crop(" + x + "," + y + "," + width + "," + height + ")";
+        }
+    }
+
+    public static final class Resize extends Operation {
+
+        private final int width, height;
+
+        Resize(int width, int height) {
+            if (width <= 0 && height <= 0) {
+                throw new IllegalArgumentException("Resize needs a width or height");
+            }
+            this.width = Math.max(width, 0);
+            this.height = Math.max(height, 0);
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public String toString() {
+            return "resize(" + width + "," + height + ")";
+        }
+    }
+
+    public static final class Rotate extends Operation {
+
+        private final int degrees;
+
+        Rotate(int degrees) {
+            this.degrees = ((degrees % 360) + 360) % 360;
+        }
+
+        /**
+         * @return Clockwise angle between 0 and 359
+         */
+        public int getDegrees() {
+            return degrees;
+        }
+
+        @Override
+        public String toString() {
+            return "rotate(" + degrees + ")";
+        }
+    }
+
+    public static final class Encode extends Operation {
+
+        private final Image.ContentType contentType;
+        private final float quality;
+
+        Encode(Image.ContentType contentType, float quality) {
+            if (contentType != Image.ContentType.PNG && contentType != Image.ContentType.JPEG) {
+                throw new IllegalArgumentException("Images can only be encoded as PNG or JPEG, not " + contentType);
+            }
+            this.contentType = contentType;
+            this.quality = quality;
+        }
+
+        public Image.ContentType getContentType() {
+            return contentType;
+        }
+
+        public float getQuality() {
+            return quality;
+        }
+
+        /**
+         * Leaves out the quality of PNG, which is lossless and ignores it.
+         */
+        @Override
+        public String toString() {
+            if (contentType == Image.ContentType.PNG) {
+                return "encode(" + contentType.getSuffix() + ")";
+            }
+            return "encode(" + contentType.getSuffix() + "," + String.format(Locale.ROOT, "%.2f", quality) + ")";
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.pipeline;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A chain of operations applied to an image, e.g.
+ * {@code Pipeline.of(crop(0, 0, 800, 600), resize(400, 0), rotate(90), encode(JPEG, 0.8f))} using the factories in
+ * {@link Operation}. Crops, resizes and rotations by multiples of 90 degrees are fused when executed, see
+ * {@link PipelineExecutor}, so a chain of any length costs at most one resampling pass and one rotation.
+ * <p>
+ * Pipelines are immutable. The canonical form returned by {@link #toString()} identifies the result, and
+ * {@link #getKey()} is a short digest of it for use in cache keys. Consecutive crops and consecutive rotations by
+ * multiples of 90 degrees are merged into one, and rotations that add up to nothing dropped, so that pipelines with
+ * the same result share a key.
+ *
+ * @author mr.olafsson
+ */
+public final class Pipeline {
+
+    private final List<Operation> operations;
+    private final Operation.Encode encode;
+
+    private Pipeline(List<Operation> operations) {
+        List<Operation> steps = new ArrayList<Operation>(operations.size());
+        Operation.Encode encode = null;
+        for (int i = 0; i < operations.size(); i++) {
+            Operation operation = operations.get(i);
+            if (operation instanceof Operation.Encode) {
+                if (i != operations.size() - 1) {
+                    throw new IllegalArgumentException("Encoding must be the last step of a pipeline");
+                }
+                encode = (Operation.Encode) operation;
+            } else {
+                add(steps, operation);
+            }
+        }
+        this.operations = Collections.unmodifiableList(steps);
+        this.encode = encode;
+    }
+
+    /**
+     * Adds the step, merging it with the previous one where the two have the same result as one.
+     */
+    private static void add(List<Operation> steps, Operation operation) {
+        Operation previous = steps.isEmpty() ? null : steps.get(steps.size() - 1);
+        if (operation instanceof Operation.Rotate) {
+            int degrees = ((Operation.Rotate) operation).getDegrees();
+            if (degrees == 0) {
+                return;
+            }
+            if (previous instanceof Operation.Rotate && isRightAngle(degrees) && isRightAngle(((Operation.Rotate) previous).getDegrees())) {
+                steps.remove(steps.size() - 1);
+                add(steps, Operation.rotate(((Operation.Rotate) previous).getDegrees() + degrees));
+                return;
+            }
+        } else if (operation instanceof Operation.Crop && previous instanceof Operation.Crop) {
+            Operation.Crop first = (Operation.Crop) previous, second = (Operation.Crop) operation;
+            //The second crop is relative to the first, which only starts where it says if not clipped by the image
+            if (first.getX() >= 0 && first.getY() >= 0) {
+                int x = Math.max(first.getX(), first.getX() + second.getX());
+                int y = Math.max(first.getY(), first.getY() + second.getY());
+                int right = Math.min(first.getX() + first.getWidth(), first.getX() + second.getX() + second.getWidth());
+                int bottom = Math.min(first.getY() + first.getHeight(), first.getY() + second.getY() + second.getHeight());
+                if (right > x && bottom > y) {
+                    steps.set(steps.size() - 1, Operation.crop(x, y, right - x, bottom - y));
+                    return;
+                }
+            }
+        }
+        steps.add(operation);
+    }
+
+    private static boolean isRightAngle(int degrees) {
+        return degrees % 90 == 0;
+    }
+
+    public static Pipeline of(Operation... operations) {
+        return new Pipeline(Arrays.asList(operations));
+    }
+
+    public static Pipeline of(List<Operation> operations) {
+        return new Pipeline(operations);
+    }
+
+    /**
+     * @return The operations changing the pixels, without the encoding
+     */
+    public List<Operation> getOperations() {
+        return operations;
+    }
+
+    /**
+     * @return How the result is to be encoded, or null if up to the caller
+     */
+    public Operation.Encode getEncode() {
+        return encode;
+    }
+
+    /**
+     * @return A short digest of the canonical form
+     */
+    public String getKey() {
+        return DigestUtils.md5Hex(toString()).substring(0, 12);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        for (Operation operation : operations) {
+            if (buf.length() > 0) {
+                buf.append('|');
+            }
+            buf.append(operation);
+        }
+        if (encode != null) {
+            if (buf.length() > 0) {
+                buf.append('|');
+            }
+            buf.append(encode);
+        }
+        return buf.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Pipeline && toString().equals(o.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
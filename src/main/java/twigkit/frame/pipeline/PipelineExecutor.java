@@ -0,0 +1,219 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.pipeline;
+
+import twigkit.frame.resample.Resampler;
+import twigkit.frame.resample.Resampling;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+
+/**
+ * Executes the operations of a {@link Pipeline} without producing an image per step. Crops and resizes only narrow
+ * down the region of the source to read and the size to resample it to, and rotations by multiples of 90 degrees are
+ * counted, so the pixels are resampled at most once and then rotated at most once. Rotations by other angles need
+ * the pixels, so they render what came before them and the steps after start over from their result.
+ *
+ * @author mr.olafsson
+ */
+public class PipelineExecutor {
+
+    private final Resampler resampler;
+
+    public PipelineExecutor(Resampler resampler) {
+        this.resampler = resampler;
+    }
+
+    public BufferedImage execute(BufferedImage source, Pipeline pipeline) {
+        State state = new State(source);
+        for (Operation operation : pipeline.getOperations()) {
+            if (operation instanceof Operation.Crop) {
+                Operation.Crop crop = (Operation.Crop) operation;
+                state.crop(crop.getX(), crop.getY(), crop.getWidth(), crop.getHeight());
+            } else if (operation instanceof Operation.Resize) {
+                Operation.Resize resize = (Operation.Resize) operation;
+                state.resize(resize.getWidth(), resize.getHeight());
+            } else if (operation instanceof Operation.Rotate) {
+                int degrees = ((Operation.Rotate) operation).getDegrees();
+                if (degrees % 90 == 0) {
+                    state.turns = (state.turns + degrees / 90) % 4;
+                } else {
+                    state = new State(rotate(state.render(), degrees));
+                }
+            }
+        }
+        return state.render();
+    }
+
+    private BufferedImage rotate(BufferedImage image, int degrees) {
+        double theta = Math.toRadians(degrees);
+        double sin = Math.abs(Math.sin(theta)), cos = Math.abs(Math.cos(theta));
+        int width = image.getWidth(), height = image.getHeight();
+        int rotatedWidth = (int) Math.round(width * cos + height * sin);
+        int rotatedHeight = (int) Math.round(width * sin + height * cos);
+
+        boolean alpha = image.getColorModel().hasAlpha();
+        BufferedImage rotated = new BufferedImage(rotatedWidth, rotatedHeight, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rotated.createGraphics();
+        try {
+            if (!alpha) {
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, rotatedWidth, rotatedHeight);
+            }
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.translate(rotatedWidth / 2.0, rotatedHeight / 2.0);
+            g.rotate(theta);
+            g.drawImage(image, -width / 2, -height / 2, null);
+        } finally {
+            g.dispose();
+        }
+        return rotated;
+    }
+
+    /**
+     * What the steps so far amount to: the region of the base image to read, the size to resample it to and the
+     * number of clockwise quarter turns to apply afterwards.
+     */
+    private class State {
+
+        private final BufferedImage base;
+        private Rectangle region;
+        private int width, height;
+        private int turns;
+
+        private State(BufferedImage base) {
+            this.base = base;
+            this.region = new Rectangle(0, 0, base.getWidth(), base.getHeight());
+            this.width = base.getWidth();
+            this.height = base.getHeight();
+        }
+
+        private void crop(int x, int y, int w, int h) {
+            int visibleWidth = turns % 2 == 0 ? width : height;
+            int visibleHeight = turns % 2 == 0 ? height : width;
+            Rectangle visible = new Rectangle(x, y, w, h).intersection(new Rectangle(0, 0, visibleWidth, visibleHeight));
+            if (visible.isEmpty()) {
+                throw new IllegalArgumentException("Crop " + x + "," + y + " " + w + "x" + h + " lies outside the image");
+            }
+
+            //Undo the pending turns to find the crop before rotation
+            Rectangle unrotated;
+            switch (turns) {
+                case 1:
+                    unrotated = new Rectangle(visible.y, height - visible.x - visible.width, visible.height, visible.width);
+                    break;
+                case 2:
+                    unrotated = new Rectangle(width - visible.x - visible.width, height - visible.y - visible.height, visible.width, visible.height);
+                    break;
+                case 3:
+                    unrotated = new Rectangle(width - visible.y - visible.height, visible.x, visible.height, visible.width);
+                    break;
+                default:
+                    unrotated = visible;
+            }
+            narrow(unrotated);
+        }
+
+        private void resize(int w, int h) {
+            if (turns % 2 == 1) {
+                int swap = w;
+                w = h;
+                h = swap;
+            }
+            if (w == h) {
+                //Center cropping if necessary
+                if (width > height) {
+                    narrow(new Rectangle((width - height) / 2, 0, height, height));
+                } else if (height > width) {
+                    narrow(new Rectangle(0, (height - width) / 2, width, width));
+                }
+                width = w;
+                height = h;
+            } else {
+                int calcWidth = w > 0 ? w : Math.max(1, h * width / height);
+                int calcHeight = h > 0 ? h : Math.max(1, w * height / width);
+                width = calcWidth;
+                height = calcHeight;
+            }
+        }
+
+        /**
+         * Narrows the region of the base image down to the given rectangle of the image as resampled so far.
+         */
+        private void narrow(Rectangle rectangle) {
+            double scaleX = region.getWidth() / width, scaleY = region.getHeight() / height;
+            int x = region.x + (int) Math.round(rectangle.x * scaleX);
+            int y = region.y + (int) Math.round(rectangle.y * scaleY);
+            int w = Math.max(1, (int) Math.round(rectangle.width * scaleX));
+            int h = Math.max(1, (int) Math.round(rectangle.height * scaleY));
+            region = new Rectangle(x, y, w, h).intersection(region);
+            width = rectangle.width;
+            height = rectangle.height;
+        }
+
+        private BufferedImage render() {
+            BufferedImage image = base;
+            if (region.width != base.getWidth() || region.height != base.getHeight()) {
+                image = base.getSubimage(region.x, region.y, region.width, region.height);
+            }
+            if (width != region.width || height != region.height) {
+                BufferedImage resampled = new BufferedImage(width, height, Resampling.getDestinationType(base));
+                resampler.resample(image, resampled);
+                image = resampled;
+            } else if (image != base) {
+                //Copy the region rather than keep all of the base image alive through a view
+                image = copy(image, image.getWidth(), image.getHeight());
+            }
+            return turns == 0 ? image : turn(image);
+        }
+
+        private BufferedImage turn(BufferedImage image) {
+            int w = image.getWidth(), h = image.getHeight();
+            AffineTransform transform;
+            switch (turns) {
+                case 1:
+                    transform = AffineTransform.getTranslateInstance(h, 0);
+                    break;
+                case 2:
+                    transform = AffineTransform.getTranslateInstance(w, h);
+                    break;
+                default:
+                    transform = AffineTransform.getTranslateInstance(0, w);
+            }
+            transform.quadrantRotate(turns);
+
+            BufferedImage turned = turns == 2 ? blank(image, w, h) : blank(image, h, w);
+            new AffineTransformOp(transform, AffineTransformOp.TYPE_NEAREST_NEIGHBOR).filter(image, turned);
+            return turned;
+        }
+
+        private BufferedImage copy(BufferedImage image, int w, int h) {
+            BufferedImage copy = blank(image, w, h);
+            copy.setData(image.getRaster().createTranslatedChild(0, 0));
+            return copy;
+        }
+
+        private BufferedImage blank(BufferedImage image, int w, int h) {
+            ColorModel colorModel = image.getColorModel();
+            return new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(w, h), colorModel.isAlphaPremultiplied(), null);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.resample;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Separable convolution with a {@link Filter} kernel, working on the raw ARGB data. The image is filtered
+ * horizontally into an intermediate buffer first, then vertically into the destination. When reducing, the kernel is
+ * widened by the scale factor so that every source pixel contributes to the result.
+ * <p>
+ * Colour channels are premultiplied by alpha while filtering to avoid dark fringes around transparent areas.
+ *
+ * @author mr.olafsson
+ */
+public class ConvolutionResampler implements Resampler {
+
+    private final Filter filter;
+
+    public ConvolutionResampler(Filter filter) {
+        this.filter = filter;
+    }
+
+    public void resample(BufferedImage source, BufferedImage destination) {
+        Pass pass = new Pass(source, destination);
+        pass.filterRows(0, source.getHeight());
+        pass.filterColumns(0, destination.getHeight());
+    }
+
+    /**
+     * State shared by the horizontal and vertical pass of one resample.
+     */
+    protected class Pass {
+
+        final int sourceWidth, sourceHeight, width, height;
+        final boolean alpha;
+        final Pixels.Reader reader;
+        final Pixels.Writer writer;
+        final Contributions horizontal, vertical;
+
+        /**
+         * Horizontally filtered rows, four premultiplied channels (a, r, g, b) per pixel.
+         */
+        final float[] intermediate;
+
+        protected Pass(BufferedImage source, BufferedImage destination) {
+            sourceWidth = source.getWidth();
+            sourceHeight = source.getHeight();
+            width = destination.getWidth();
+            height = destination.getHeight();
+            alpha = source.getColorModel().hasAlpha();
+            reader = Pixels.reader(source);
+            writer = Pixels.writer(destination);
+            horizontal = new Contributions(filter, sourceWidth, width);
+            vertical = new Contributions(filter, sourceHeight, height);
+            intermediate = new float[width * sourceHeight * 4];
+        }
+
+        /**
+         * Filters source rows [from, to) horizontally into the intermediate buffer.
+         */
+        protected void filterRows(int from, int to) {
+            int[] row = new int[sourceWidth];
+            int taps = horizontal.taps;
+
+            for (int y = from; y < to; y++) {
+                reader.read(y, row);
+                int out = y * width * 4;
+                for (int x = 0; x < width; x++) {
+                    float a = 0, r = 0, g = 0, b = 0;
+                    for (int t = x * taps, end = t + taps; t < end; t++) {
+                        float weight = horizontal.weights[t];
+                        int pixel = row[horizontal.indices[t]];
+                        float pa = pixel >>> 24;
+                        float premultiply = alpha ? weight * pa / 255f : weight;
+                        a += weight * pa;
+                        r += premultiply * ((pixel >> 16) & 0xFF);
+                        g += premultiply * ((pixel >> 8) & 0xFF);
+                        b += premultiply * (pixel & 0xFF);
+                    }
+                    intermediate[out++] = a;
+                    intermediate[out++] = r;
+                    intermediate[out++] = g;
+                    intermediate[out++] = b;
+                }
+            }
+        }
+
+        /**
+         * Filters the intermediate buffer vertically into destination rows [from, to).
+         */
+        protected void filterColumns(int from, int to) {
+            float[] sums = new float[width * 4];
+            int[] row = new int[width];
+            int taps = vertical.taps;
+
+            for (int y = from; y < to; y++) {
+                Arrays.fill(sums, 0);
+                for (int t = y * taps, end = t + taps; t < end; t++) {
+                    float weight = vertical.weights[t];
+                    if (weight == 0) {
+                        continue;
+                    }
+                    int in = vertical.indices[t] * width * 4;
+                    for (int i = 0; i < sums.length; i++) {
+                        sums[i] += weight * intermediate[in + i];
+                    }
+                }
+
+                for (int x = 0, i = 0; x < width; x++, i += 4) {
+                    int a = clamp(sums[i]);
+                    float unpremultiply = alpha ? (a == 0 ? 0 : 255f / sums[i]) : 1;
+                    row[x] = a << 24 | clamp(sums[i + 1] * unpremultiply) << 16 | clamp(sums[i + 2] * unpremultiply) << 8 | clamp(sums[i + 3] * unpremultiply);
+                }
+                writer.write(y, row);
+            }
+        }
+    }
+
+    private static int clamp(float value) {
+        int i = Math.round(value);
+        return i < 0 ? 0 : (i > 255 ? 255 : i);
+    }
+
+    /**
+     * Source indices and normalised weights contributing to each destination pixel along one axis, a fixed number of
+     * taps per pixel.
+     */
+    static class Contributions {
+
+        final int taps;
+        final int[] indices;
+        final float[] weights;
+
+        Contributions(Filter filter, int sourceLength, int length) {
+            double scale = (double) sourceLength / length;
+            double filterScale = Math.max(1, scale);
+            double support = filter.getSupport() * filterScale;
+
+            taps = (int) Math.ceil(support * 2) + 1;
+            indices = new int[length * taps];
+            weights = new float[length * taps];
+
+            for (int i = 0; i < length; i++) {
+                double center = (i + 0.5) * scale - 0.5;
+                int left = (int) Math.ceil(center - support);
+                int right = (int) Math.floor(center + support);
+                int offset = i * taps;
+
+                double total = 0;
+                for (int j = left, t = offset; j <= right && t < offset + taps; j++, t++) {
+                    double weight = filter.apply((j - center) / filterScale);
+                    indices[t] = Math.min(Math.max(j, 0), sourceLength - 1);
+                    weights[t] = (float) weight;
+                    total += weight;
+                }
+
+                if (total == 0) {
+                    indices[offset] = Math.min(Math.max((int) Math.round(center), 0), sourceLength - 1);
+                    weights[offset] = 1;
+                } else {
+                    for (int t = offset; t < offset + taps; t++) {
+                        weights[t] /= total;
+                    }
+                }
+            }
+        }
+    }
+}
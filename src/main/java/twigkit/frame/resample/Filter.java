@@ -0,0 +1,62 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.resample;
+
+/**
+ * Filter kernels for the {@link ConvolutionResampler}.
+ *
+ * @author mr.olafsson
+ */
+public enum Filter {
+
+    BOX(0.5) {
+        @Override
+        public double apply(double x) {
+            x = Math.abs(x);
+            if (x < 0.5) {
+                return 1;
+            }
+            return x == 0.5 ? 0.5 : 0;
+        }
+    },
+
+    LANCZOS3(3) {
+        @Override
+        public double apply(double x) {
+            x = Math.abs(x);
+            if (x == 0) {
+                return 1;
+            } else if (x >= 3) {
+                return 0;
+            }
+            double pix = Math.PI * x;
+            return 3 * Math.sin(pix) * Math.sin(pix / 3) / (pix * pix);
+        }
+    };
+
+    private final double support;
+
+    Filter(double support) {
+        this.support = support;
+    }
+
+    /**
+     * @return Distance from the center beyond which the filter is zero, in source pixels when not scaling
+     */
+    public double getSupport() {
+        return support;
+    }
+
+    public abstract double apply(double x);
+}
@@ -0,0 +1,37 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.resample;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Scales using a single {@link Graphics2D#drawImage} with bilinear interpolation.
+ *
+ * @author mr.olafsson
+ */
+public class GraphicsResampler implements Resampler {
+
+    public void resample(BufferedImage source, BufferedImage destination) {
+        Graphics2D g = destination.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        g.setComposite(AlphaComposite.Src);
+
+        g.drawImage(source, 0, 0, destination.getWidth(), destination.getHeight(), null);
+        g.dispose();
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.resample;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A {@link ConvolutionResampler} that splits both passes into bands of rows and filters them in parallel on a
+ * {@link ForkJoinPool}. Images with fewer source pixels than the threshold are resampled on the calling thread, as
+ * the overhead of splitting outweighs the gain for them.
+ *
+ * @author mr.olafsson
+ */
+public class ParallelResampler extends ConvolutionResampler {
+
+    /**
+     * Source pixels below which resampling stays single threaded.
+     */
+    public static final long DEFAULT_THRESHOLD = 8 * 1000 * 1000;
+
+    /**
+     * Number of bands per worker thread, more than one so that faster threads can steal work from slower ones.
+     */
+    private static final int BANDS_PER_THREAD = 4;
+
+    private final ForkJoinPool pool;
+    private final long threshold;
+
+    /**
+     * Runs the bands on the common pool, so no threads are left behind for the application to shut down.
+     */
+    public ParallelResampler(Filter filter) {
+        this(filter, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param filter    Kernel to filter with
+     * @param pool      Pool to run the bands on
+     * @param threshold Number of source pixels from which to resample in parallel
+     */
+    public ParallelResampler(Filter filter, ForkJoinPool pool, long threshold) {
+        super(filter);
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void resample(BufferedImage source, BufferedImage destination) {
+        if ((long) source.getWidth() * source.getHeight() < threshold) {
+            super.resample(source, destination);
+            return;
+        }
+
+        Pass pass = new Pass(source, destination);
+        int bands = pool.getParallelism() * BANDS_PER_THREAD;
+        pool.invoke(new Band(pass, true, 0, source.getHeight(), Math.max(1, source.getHeight() / bands)));
+        pool.invoke(new Band(pass, false, 0, destination.getHeight(), Math.max(1, destination.getHeight() / bands)));
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    private static class Band extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Pass pass;
+        private final boolean horizontal;
+        private final int from, to, rows;
+
+        Band(Pass pass, boolean horizontal, int from, int to, int rows) {
+            this.pass = pass;
+            this.horizontal = horizontal;
+            this.from = from;
+            this.to = to;
+            this.rows = rows;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= rows) {
+                if (horizontal) {
+                    pass.filterRows(from, to);
+                } else {
+                    pass.filterColumns(from, to);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Band(pass, horizontal, from, middle, rows), new Band(pass, horizontal, middle, to, rows));
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.resample;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Row access to images as non-premultiplied ARGB, going straight to the backing arrays for the common image types and
+ * falling back to {@link BufferedImage#getRGB} for everything else. Rows may be read or written concurrently as long
+ * as each thread works on different rows.
+ *
+ * @author mr.olafsson
+ */
+final class Pixels {
+
+    interface Reader {
+        void read(int y, int[] argb);
+    }
+
+    interface Writer {
+        void write(int y, int[] argb);
+    }
+
+    private Pixels() {
+    }
+
+    static Reader reader(final int[] pixels, final int width) {
+        return new Reader() {
+            public void read(int y, int[] argb) {
+                System.arraycopy(pixels, y * width, argb, 0, width);
+            }
+        };
+    }
+
+    static Reader reader(final BufferedImage image) {
+        final int width = image.getWidth();
+        final Raster raster = image.getRaster();
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                final int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                final int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+                final int offset = offset(raster);
+                final int opaque = image.getType() == BufferedImage.TYPE_INT_RGB ? 0xFF000000 : 0;
+                return new Reader() {
+                    public void read(int y, int[] argb) {
+                        int i = offset + y * stride;
+                        for (int x = 0; x < width; x++) {
+                            argb[x] = data[i + x] | opaque;
+                        }
+                    }
+                };
+            }
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+                final int stride = sampleModel.getScanlineStride();
+                final int pixelStride = sampleModel.getPixelStride();
+                final int offset = offset(raster);
+                final int[] bands = sampleModel.getBandOffsets();
+                final boolean alpha = bands.length > 3;
+                return new Reader() {
+                    public void read(int y, int[] argb) {
+                        int i = offset + y * stride;
+                        for (int x = 0; x < width; x++, i += pixelStride) {
+                            int a = alpha ? data[i + bands[3]] & 0xFF : 0xFF;
+                            argb[x] = a << 24 | (data[i + bands[0]] & 0xFF) << 16 | (data[i + bands[1]] & 0xFF) << 8 | (data[i + bands[2]] & 0xFF);
+                        }
+                    }
+                };
+            }
+            default:
+                return new Reader() {
+                    public void read(int y, int[] argb) {
+                        image.getRGB(0, y, width, 1, argb, 0, width);
+                    }
+                };
+        }
+    }
+
+    static Writer writer(final BufferedImage image) {
+        final int width = image.getWidth();
+        final Raster raster = image.getRaster();
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                final int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                final int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+                final int offset = offset(raster);
+                return new Writer() {
+                    public void write(int y, int[] argb) {
+                        System.arraycopy(argb, 0, data, offset + y * stride, width);
+                    }
+                };
+            }
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+                final int stride = sampleModel.getScanlineStride();
+                final int pixelStride = sampleModel.getPixelStride();
+                final int offset = offset(raster);
+                final int[] bands = sampleModel.getBandOffsets();
+                final boolean alpha = bands.length > 3;
+                return new Writer() {
+                    public void write(int y, int[] argb) {
+                        int i = offset + y * stride;
+                        for (int x = 0; x < width; x++, i += pixelStride) {
+                            int pixel = argb[x];
+                            data[i + bands[0]] = (byte) (pixel >> 16);
+                            data[i + bands[1]] = (byte) (pixel >> 8);
+                            data[i + bands[2]] = (byte) pixel;
+                            if (alpha) {
+                                data[i + bands[3]] = (byte) (pixel >>> 24);
+                            }
+                        }
+                    }
+                };
+            }
+            default:
+                return new Writer() {
+                    public void write(int y, int[] argb) {
+                        image.setRGB(0, y, width, 1, argb, 0, width);
+                    }
+                };
+        }
+    }
+
+    /**
+     * Index of the first pixel in the data array, taking sub-images into account.
+     */
+    private static int offset(Raster raster) {
+        int scanlineStride, pixelStride;
+        if (raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+            scanlineStride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            pixelStride = 1;
+        } else {
+            scanlineStride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+            pixelStride = ((ComponentSampleModel) raster.getSampleModel()).getPixelStride();
+        }
+        return raster.getDataBuffer().getOffset() - raster.getSampleModelTranslateY() * scanlineStride - raster.getSampleModelTranslateX() * pixelStride;
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.resample;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Halves the image with a 2x2 box filter on the raw ARGB data until it is less than twice the destination size, then
+ * finishes with a single bilinear pass. Each halving averages every source pixel, so unlike a single bilinear pass no
+ * source pixels are skipped.
+ *
+ * @author mr.olafsson
+ */
+public class ProgressiveResampler implements Resampler {
+
+    private final Resampler finalPass = new GraphicsResampler();
+
+    public void resample(BufferedImage source, BufferedImage destination) {
+        int width = source.getWidth(), height = source.getHeight();
+        int targetWidth = destination.getWidth(), targetHeight = destination.getHeight();
+
+        if (width / 2 < targetWidth && height / 2 < targetHeight) {
+            finalPass.resample(source, destination);
+            return;
+        }
+
+        boolean alpha = source.getColorModel().hasAlpha();
+        Pixels.Reader reader = Pixels.reader(source);
+        int[] pixels = null;
+
+        while (width / 2 >= targetWidth || height / 2 >= targetHeight) {
+            int xFactor = width / 2 >= targetWidth ? 2 : 1;
+            int yFactor = height / 2 >= targetHeight ? 2 : 1;
+
+            pixels = halve(reader, width, width / xFactor, height / yFactor, xFactor, yFactor, alpha);
+            width /= xFactor;
+            height /= yFactor;
+            reader = Pixels.reader(pixels, width);
+        }
+
+        BufferedImage reduced = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) reduced.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, 0, data, 0, pixels.length);
+
+        finalPass.resample(reduced, destination);
+    }
+
+    private int[] halve(Pixels.Reader reader, int width, int newWidth, int newHeight, int xFactor, int yFactor, boolean alpha) {
+        int[] result = new int[newWidth * newHeight];
+        int[] row0 = new int[width], row1 = new int[width];
+        int samples = xFactor * yFactor;
+
+        for (int y = 0; y < newHeight; y++) {
+            reader.read(y * yFactor, row0);
+            int[] second = row0;
+            if (yFactor == 2) {
+                reader.read(y * 2 + 1, row1);
+                second = row1;
+            }
+
+            for (int x = 0; x < newWidth; x++) {
+                int sx = x * xFactor;
+                int p0 = row0[sx], p1 = row0[sx + xFactor - 1], p2 = second[sx], p3 = second[sx + xFactor - 1];
+                int pixel;
+                if (alpha) {
+                    pixel = averagePremultiplied(p0, p1, p2, p3);
+                } else {
+                    // With a factor of 1 on an axis the same pixel is counted twice, which keeps the weights even
+                    int r = ((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF);
+                    int g = ((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF);
+                    int b = (p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF);
+                    pixel = 0xFF000000 | ((r + 2) >> 2) << 16 | ((g + 2) >> 2) << 8 | ((b + 2) >> 2);
+                }
+                result[y * newWidth + x] = pixel;
+            }
+        }
+        return result;
+    }
+
+    private int averagePremultiplied(int p0, int p1, int p2, int p3) {
+        int a0 = p0 >>> 24, a1 = p1 >>> 24, a2 = p2 >>> 24, a3 = p3 >>> 24;
+        int a = a0 + a1 + a2 + a3;
+        if (a == 0) {
+            return 0;
+        }
+        int r = ((p0 >> 16) & 0xFF) * a0 + ((p1 >> 16) & 0xFF) * a1 + ((p2 >> 16) & 0xFF) * a2 + ((p3 >> 16) & 0xFF) * a3;
+        int g = ((p0 >> 8) & 0xFF) * a0 + ((p1 >> 8) & 0xFF) * a1 + ((p2 >> 8) & 0xFF) * a2 + ((p3 >> 8) & 0xFF) * a3;
+        int b = (p0 & 0xFF) * a0 + (p1 & 0xFF) * a1 + (p2 & 0xFF) * a2 + (p3 & 0xFF) * a3;
+        return ((a + 2) >> 2) << 24 | ((r + a / 2) / a) << 16 | ((g + a / 2) / a) << 8 | ((b + a / 2) / a);
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.resample;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of images to resample into, keyed by type, width and height, so that resizing many images to the same few
+ * sizes reuses their pixel arrays rather than allocating large short-lived ones for every resize. Images taken from
+ * the pool still hold the pixels of their previous use, which is fine for resamplers as they write every pixel.
+ * <p>
+ * The pool holds at most the given number of bytes of pixels, images released beyond that are left to the garbage
+ * collector. Only images of the standard types are pooled.
+ *
+ * @author mr.olafsson
+ */
+public class RasterPool {
+
+    private final long maxBytes;
+
+    private final ConcurrentMap<Key, Queue<BufferedImage>> images = new ConcurrentHashMap<Key, Queue<BufferedImage>>();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+
+    /**
+     * @param maxBytes Total size of the pixels of the images held whilst not in use
+     */
+    public RasterPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return An image of the given type and size, from the pool if one was released
+     */
+    public BufferedImage acquire(int type, int width, int height) {
+        if (type != BufferedImage.TYPE_CUSTOM) {
+            Queue<BufferedImage> queue = images.get(new Key(type, width, height));
+            if (queue != null) {
+                BufferedImage image = queue.poll();
+                if (image != null) {
+                    bytes.addAndGet(-getBytes(image));
+                    reuses.incrementAndGet();
+                    return image;
+                }
+            }
+        }
+
+        BufferedImage image = new BufferedImage(width, height, type);
+        allocations.incrementAndGet();
+        allocatedBytes.addAndGet(getBytes(image));
+        return image;
+    }
+
+    /**
+     * Returns an image to the pool. It must no longer be used by the caller.
+     *
+     * @return Whether the pool kept the image
+     */
+    public boolean release(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_CUSTOM) {
+            return false;
+        }
+        long size = getBytes(image);
+        if (bytes.addAndGet(size) > maxBytes) {
+            bytes.addAndGet(-size);
+            discards.incrementAndGet();
+            return false;
+        }
+
+        Key key = new Key(image.getType(), image.getWidth(), image.getHeight());
+        Queue<BufferedImage> queue = images.get(key);
+        if (queue == null) {
+            Queue<BufferedImage> created = new ConcurrentLinkedQueue<BufferedImage>();
+            queue = images.putIfAbsent(key, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        queue.offer(image);
+        return true;
+    }
+
+    /**
+     * Drops all pooled images.
+     */
+    public void clear() {
+        for (Queue<BufferedImage> queue : images.values()) {
+            BufferedImage image;
+            while ((image = queue.poll()) != null) {
+                bytes.addAndGet(-getBytes(image));
+            }
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return Size of the pixels of the images currently held
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return Number of images allocated because none of the type and size was pooled
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    /**
+     * @return Size of the pixels of all images allocated
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * @return Number of images served from the pool
+     */
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    /**
+     * @return Number of released images not kept as the pool was full
+     */
+    public long getDiscardCount() {
+        return discards.get();
+    }
+
+    private static long getBytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    private static final class Key {
+
+        private final int type, width, height;
+
+        private Key(int type, int width, int height) {
+            this.type = type;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return type == key.type && width == key.width && height == key.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return (type * 31 + width) * 31 + height;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.resample;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Scales the pixels of one image into another.
+ *
+ * @author mr.olafsson
+ */
+public interface Resampler {
+
+    /**
+     * Scales the whole of the source image to fit the whole of the destination image.
+     *
+     * @param source      Image to read from, may be a sub-image
+     * @param destination Image to write to, its dimensions determine the scaling
+     */
+    void resample(BufferedImage source, BufferedImage destination);
+}
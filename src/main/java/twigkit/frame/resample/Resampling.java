@@ -0,0 +1,72 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.resample;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * The resampling algorithms available out of the box, trading speed for quality.
+ *
+ * @author mr.olafsson
+ */
+public enum Resampling implements Resampler {
+
+    /**
+     * Single bilinear pass through Java2D, fast but aliased when reducing by more than half.
+     */
+    BILINEAR(new GraphicsResampler()),
+
+    /**
+     * Repeated halving followed by a bilinear pass, nearly as fast as {@link #BILINEAR} with much less aliasing.
+     */
+    PROGRESSIVE(new ProgressiveResampler()),
+
+    /**
+     * Averages all source pixels covered by each destination pixel.
+     */
+    AREA_AVERAGE(new ConvolutionResampler(Filter.BOX)),
+
+    /**
+     * Lanczos windowed sinc, the sharpest and slowest option.
+     */
+    LANCZOS(new ConvolutionResampler(Filter.LANCZOS3)),
+
+    /**
+     * {@link #LANCZOS} split into bands resampled in parallel, for images larger than
+     * {@link ParallelResampler#DEFAULT_THRESHOLD} pixels.
+     */
+    PARALLEL_LANCZOS(new ParallelResampler(Filter.LANCZOS3));
+
+    private final Resampler resampler;
+
+    Resampling(Resampler resampler) {
+        this.resampler = resampler;
+    }
+
+    public void resample(BufferedImage source, BufferedImage destination) {
+        resampler.resample(source, destination);
+    }
+
+    /**
+     * @return The type of image to resample the source into. Custom types, such as decoded PNGs, are resampled into
+     * {@link BufferedImage#TYPE_4BYTE_ABGR}, preserving any alpha channel, which the resamplers write to directly.
+     */
+    public static int getDestinationType(BufferedImage source) {
+        int type = source.getType();
+        if (type == BufferedImage.TYPE_CUSTOM) {
+            type = BufferedImage.TYPE_4BYTE_ABGR;
+        }
+        return type;
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.util;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Seekable image input over a buffer, typically a read-only memory mapping of a file. Seeking is free and nothing is
+ * copied into a cache, unlike the streams {@link javax.imageio.ImageIO#createImageInputStream} wraps around an
+ * {@link java.io.InputStream}.
+ * <p>
+ * Each stream has its own position, so several streams, one per thread, can read the same buffer concurrently.
+ *
+ * @author mr.olafsson
+ */
+public class MappedImageInputStream extends ImageInputStreamImpl {
+
+    private final ByteBuffer buffer;
+
+    public MappedImageInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+        this.buffer.clear();
+    }
+
+    /**
+     * Maps the whole of the file read-only. The mapping stays valid after the file is closed and is released when it is
+     * garbage collected.
+     */
+    public static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= buffer.limit()) {
+            return -1;
+        }
+        return buffer.get((int) streamPos++) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (length == 0) {
+            return 0;
+        }
+        if (streamPos >= buffer.limit()) {
+            return -1;
+        }
+
+        length = (int) Math.min(length, buffer.limit() - streamPos);
+        buffer.position((int) streamPos);
+        buffer.get(bytes, offset, length);
+        streamPos += length;
+        return length;
+    }
+
+    @Override
+    public long length() {
+        return buffer.limit();
+    }
+
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    public boolean isCachedMemory() {
+        return true;
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.util;
+
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageReader;
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageReaderSpi;
+import twigkit.frame.Image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A multi-page TIFF opened once, with a single reader kept for all pages. The reader remembers where each page
+ * starts, so pages can be read in any order without parsing the file from the beginning again. Page count and page
+ * dimensions are read from the page headers only when asked for, without decoding any pixels.
+ * <p>
+ * Documents are not thread safe, open one per thread to read pages concurrently.
+ *
+ * @author mr.olafsson
+ */
+public class TIFFDocument implements Closeable, Iterable<Image> {
+
+    private final ImageInputStream stream;
+    private final TIFFImageReader reader;
+    private int pageCount = -1;
+
+    /**
+     * Reads from the given stream, which is closed along with the document.
+     */
+    public TIFFDocument(ImageInputStream stream) throws IOException {
+        this.stream = stream;
+        reader = (TIFFImageReader) new TIFFImageReaderSpi().createReaderInstance();
+        reader.setInput(stream);
+    }
+
+    /**
+     * Opens the file through a read-only memory mapping, or as a regular file if too large to map.
+     */
+    public static TIFFDocument open(File file) throws IOException {
+        if (file.length() <= Integer.MAX_VALUE) {
+            return new TIFFDocument(new MappedImageInputStream(MappedImageInputStream.map(file)));
+        }
+        return new TIFFDocument(new FileImageInputStream(file));
+    }
+
+    /**
+     * Opens the stream, buffering it so that pages can be revisited. The stream itself is not closed with the document.
+     */
+    public static TIFFDocument open(InputStream inputStream) throws IOException {
+        return new TIFFDocument(ImageIO.createImageInputStream(inputStream));
+    }
+
+    public int getPageCount() throws IOException {
+        if (pageCount < 0) {
+            pageCount = reader.getNumImages(true);
+        }
+        return pageCount;
+    }
+
+    public int getWidth(int page) throws IOException {
+        return reader.getWidth(page);
+    }
+
+    public int getHeight(int page) throws IOException {
+        return reader.getHeight(page);
+    }
+
+    public IIOMetadata getMetadata(int page) throws IOException {
+        return reader.getImageMetadata(page);
+    }
+
+    public Image getPage(int page) throws IOException {
+        return new Image(reader.read(page));
+    }
+
+    /**
+     * Decodes part of a page, for example the viewport of a zoomed in viewer. Only the tiles or strips overlapping the
+     * region are read and decompressed, so the cost is proportional to the region rather than the page.
+     *
+     * @param page        Page to read from
+     * @param region      Area of the page in pixels, clipped to the page bounds
+     * @param subsampling Keep one in this many pixels in each direction, 1 for full resolution
+     */
+    public Image getRegion(int page, Rectangle region, int subsampling) throws IOException {
+        Rectangle bounds = new Rectangle(0, 0, getWidth(page), getHeight(page));
+        Rectangle clipped = region.intersection(bounds);
+        if (clipped.isEmpty()) {
+            throw new IllegalArgumentException("Region " + region + " lies outside page " + page + " " + bounds);
+        }
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(clipped);
+        if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        return new Image(reader.read(page, param));
+    }
+
+    /**
+     * @return Whether the page is stored in tiles rather than strips
+     */
+    public boolean isTiled(int page) throws IOException {
+        return reader.isImageTiled(page);
+    }
+
+    /**
+     * @return Size of the tiles the page is stored in, or of its strips when not tiled. Regions aligned to these
+     * boundaries avoid decoding pixels outside the region.
+     */
+    public Dimension getTileSize(int page) throws IOException {
+        return new Dimension(reader.getTileWidth(page), reader.getTileHeight(page));
+    }
+
+    /**
+     * Iterates over the pages in order, decoding each one as it is reached.
+     */
+    public Iterator<Image> iterator() {
+        return new Iterator<Image>() {
+            private int page = 0;
+
+            public boolean hasNext() {
+                try {
+                    return page < getPageCount();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to count TIFF pages", e);
+                }
+            }
+
+            public Image next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return getPage(page++);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to read TIFF page " + (page - 1), e);
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    protected TIFFImageReader getReader() {
+        return reader;
+    }
+
+    public void close() throws IOException {
+        reader.dispose();
+        stream.close();
+    }
+}
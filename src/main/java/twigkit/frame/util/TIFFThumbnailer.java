@@ -0,0 +1,175 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import twigkit.frame.BasicImageIOService;
+import twigkit.frame.BasicImageService;
+import twigkit.frame.Image;
+
+import javax.imageio.stream.FileImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Produces thumbnails of every page of a multi-page TIFF using a bounded number of workers. The file is mapped into
+ * memory once and each worker opens its own {@link TIFFDocument} over the shared mapping, taking the next page not yet
+ * taken by another worker, so that pages are decoded and resized in parallel without copying the file per worker.
+ * <p>
+ * Thumbnails are handed to a {@link Listener} as each one completes, in no particular page order.
+ *
+ * @author mr.olafsson
+ */
+public class TIFFThumbnailer {
+
+    private static final Logger logger = LoggerFactory.getLogger(TIFFThumbnailer.class);
+
+    private final BasicImageService service;
+    private final ExecutorService executor;
+    private final int workers;
+    private final boolean ownsExecutor;
+
+    /**
+     * Resizes with a {@link BasicImageIOService} using one worker per processor.
+     */
+    public TIFFThumbnailer() {
+        this(new BasicImageIOService(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param service Service used to resize the pages
+     * @param workers Maximum number of pages decoded at the same time
+     */
+    public TIFFThumbnailer(BasicImageService service, int workers) {
+        this(service, Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "frame-tiff-thumbnailer");
+            thread.setDaemon(true);
+            return thread;
+        }), workers, true);
+    }
+
+    /**
+     * @param service  Service used to resize the pages
+     * @param executor Runs the workers, not shut down by this thumbnailer
+     * @param workers  Maximum number of workers per document, each of which keeps the executor busy until all pages are taken
+     */
+    public TIFFThumbnailer(BasicImageService service, ExecutorService executor, int workers) {
+        this(service, executor, workers, false);
+    }
+
+    private TIFFThumbnailer(BasicImageService service, ExecutorService executor, int workers, boolean ownsExecutor) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least one worker is required");
+        }
+        this.service = service;
+        this.executor = executor;
+        this.workers = workers;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * Receives thumbnails as they are produced. Called from the worker threads, possibly concurrently.
+     */
+    public interface Listener {
+
+        void onThumbnail(int page, Image thumbnail);
+
+        /**
+         * A page failed to decode or resize, the remaining pages are still processed.
+         */
+        void onFailure(int page, Exception e);
+    }
+
+    /**
+     * Generates thumbnails of all pages, returning once every page has been handed to the listener.
+     *
+     * @return Number of pages in the document
+     */
+    public int thumbnails(final File file, final int widthInPixels, final int heightInPixels, final Listener listener) throws IOException {
+        final ByteBuffer mapping = file.length() <= Integer.MAX_VALUE ? MappedImageInputStream.map(file) : null;
+
+        final int pageCount;
+        TIFFDocument first = open(file, mapping);
+        try {
+            pageCount = first.getPageCount();
+        } finally {
+            first.close();
+        }
+
+        final AtomicInteger nextPage = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < Math.min(workers, pageCount); i++) {
+            futures.add(executor.submit(() -> {
+                TIFFDocument document = open(file, mapping);
+                try {
+                    int page;
+                    while ((page = nextPage.getAndIncrement()) < pageCount) {
+                        try {
+                            Image thumbnail = service.resize(document.getPage(page), widthInPixels, heightInPixels);
+                            listener.onThumbnail(page, thumbnail);
+                        } catch (Exception e) {
+                            logger.warn("Failed to create thumbnail of page {} in {}", page, file);
+                            listener.onFailure(page, e);
+                        }
+                    }
+                } finally {
+                    document.close();
+                }
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted creating thumbnails of " + file);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to open " + file, e.getCause());
+        }
+
+        return pageCount;
+    }
+
+    /**
+     * Shuts down the executor if it was created by this thumbnailer.
+     */
+    public void shutdown() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    private static TIFFDocument open(File file, ByteBuffer mapping) throws IOException {
+        if (mapping != null) {
+            return new TIFFDocument(new MappedImageInputStream(mapping));
+        }
+        return new TIFFDocument(new FileImageInputStream(file));
+    }
+}
@@ -15,11 +15,10 @@
 package twigkit.frame.util;
 
 
-import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageReader;
-import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageReaderSpi;
 import twigkit.frame.Image;
 
-import javax.imageio.ImageIO;
+import java.awt.*;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -40,14 +39,32 @@ public class TIFFUtils {
 	}
 
 	public static Image getPage(InputStream stream, int page) throws IOException {
-		TIFFImageReader t = (TIFFImageReader) new TIFFImageReaderSpi().createReaderInstance();
-		t.setInput(ImageIO.createImageInputStream(stream));
+		TIFFDocument document = TIFFDocument.open(stream);
 
-		Image image = new Image(t.read(page));
+		Image image = document.getPage(page);
 
-		t.dispose();
+		document.close();
 		stream.close();
 
 		return image;
 	}
+
+	/**
+	 * Decodes part of a page, see {@link TIFFDocument#getRegion(int, Rectangle, int)}.
+	 */
+	public static Image getRegion(File file, int page, Rectangle region, int subsampling) throws IOException {
+		TIFFDocument document = TIFFDocument.open(file);
+		try {
+			return document.getRegion(page, region, subsampling);
+		} finally {
+			document.close();
+		}
+	}
+
+	/**
+	 * Opens the document once for reading any number of its pages, see {@link TIFFDocument}.
+	 */
+	public static TIFFDocument open(File file) throws IOException {
+		return TIFFDocument.open(file);
+	}
 }
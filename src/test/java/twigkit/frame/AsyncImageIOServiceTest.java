@@ -0,0 +1,82 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @author mr.olafsson
+ */
+public class AsyncImageIOServiceTest {
+
+    private AsyncImageIOService service = new AsyncImageIOService();
+
+    @After
+    public void shutdown() {
+        service.shutdown();
+    }
+
+    @Test
+    public void testFromURLAndResize() throws Exception {
+        URL url = this.getClass().getClassLoader().getResource("sample.jpg");
+
+        Image resized = service.fromURL(url).thenCompose(image -> service.resize(image, 120, 0)).get();
+
+        Assert.assertEquals(120, resized.getWidth());
+    }
+
+    @Test
+    public void testFailureCompletesExceptionally() throws Exception {
+        try {
+            service.fromURL(new URL("file:/does/not/exist.jpg")).get();
+            Assert.fail("Expected the read to fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testDecodesOnCpuExecutor() throws Exception {
+        final String[] decodedOn = new String[1];
+        ExecutorService io = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "test-io"));
+        ExecutorService cpu = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "test-cpu"));
+        AsyncImageIOService async = new AsyncImageIOService(new BasicImageIOService() {
+            @Override
+            public Image from(InputStream inputStream, int widthInPixels, int heightInPixels) throws IOException {
+                decodedOn[0] = Thread.currentThread().getName();
+                return super.from(inputStream, widthInPixels, heightInPixels);
+            }
+        }, io, cpu);
+        try {
+            URL url = this.getClass().getClassLoader().getResource("sample.jpg");
+
+            Image image = async.fromURL(url, 120, 120).get();
+
+            Assert.assertEquals(url, image.getUrl());
+            Assert.assertEquals("test-cpu", decodedOn[0]);
+        } finally {
+            io.shutdown();
+            cpu.shutdown();
+        }
+    }
+}
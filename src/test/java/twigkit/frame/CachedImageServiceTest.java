@@ -13,21 +13,31 @@
  */
 package twigkit.frame;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
-import org.junit.rules.TemporaryFolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import twigkit.frame.cache.CacheIndex;
+import twigkit.frame.cache.ManualExecutor;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author mr.olafsson
@@ -37,15 +47,14 @@ public class CachedImageServiceTest {
     private static final Logger logger = LoggerFactory.getLogger(CachedImageServiceTest.class);
     private CachedImageIOService cachedService;
     private BasicImageService service;
-    private TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public CachedServices services = new CachedServices();
 
     @Before
     public void init() {
-        Properties properties = new Properties();
-        properties.setProperty("services.images.cache.name", "frame-cache");
-        properties.setProperty("services.images.offline.path", "/tmp/twigkit/offline");
-        service = new CachedImageIOService(properties);
-        cachedService = new CachedImageIOService(properties);
+        service = services.newService("basic");
+        cachedService = services.newService("offline");
     }
 
     @Test
@@ -74,7 +83,7 @@ public class CachedImageServiceTest {
 
         Assert.assertEquals(450, resized.getWidth());
 
-        File f = new File(folder.getRoot(), "kodak-small.tif");
+        File f = new File(services.getRoot(), "kodak-small.tif");
         try {
             service.write(resized, f);
         } catch (IOException e) {
@@ -90,7 +99,7 @@ public class CachedImageServiceTest {
     public void testWriteImage() throws Exception {
         Image resized = service.resize(getImage(), 150, 0);
 
-        File f = new File(folder.getRoot(), "myFile");
+        File f = new File(services.getRoot(), "myFile");
         try {
             service.write(resized, f);
         } catch (IOException e) {
@@ -117,6 +126,223 @@ public class CachedImageServiceTest {
         Assert.assertTrue(stream.size() > 50000 && stream.size() < 60000);
     }
 
+    @Test
+    public void testStreamTo() throws Exception {
+        URL url = CachedServices.getSample();
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        Assert.assertEquals(Image.ContentType.PNG, cachedService.streamTo(url, 150, 0, first));
+        Image streamed = service.from(new ByteArrayInputStream(first.toByteArray()));
+        Assert.assertEquals(150, streamed.getWidth());
+
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        cachedService.streamTo(url, 150, 0, second);
+        Assert.assertArrayEquals(first.toByteArray(), second.toByteArray());
+    }
+
+    @Test
+    public void testCacheFormat() throws Exception {
+        CachedImageIOService jpegService = services.newService("source-format", CachedImageIOService.CACHE_FORMAT_PROPERTY, CachedImageIOService.SOURCE_FORMAT);
+        URL url = CachedServices.getSample();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Assert.assertEquals(Image.ContentType.JPEG, jpegService.streamTo(url, 160, 0, stream));
+        Assert.assertEquals((byte) 0xFF, stream.toByteArray()[0]);
+        Assert.assertEquals((byte) 0xD8, stream.toByteArray()[1]);
+        Assert.assertEquals(160, jpegService.fromURL(url, 160, 0).getWidth());
+    }
+
+    @Test
+    public void testStreamOriginalAsSent() throws Exception {
+        CachedImageIOService jpegService = services.newService("as-sent", CachedImageIOService.CACHE_FORMAT_PROPERTY, CachedImageIOService.SOURCE_FORMAT);
+        URL url = CachedServices.getSample();
+        byte[] sample = FileUtils.readFileToByteArray(new File(url.getFile()));
+        AtomicInteger fetches = CachedServices.countFetches(jpegService);
+
+        // Already in the format it is cached in, so neither decoded nor encoded again
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        Assert.assertEquals(Image.ContentType.JPEG, jpegService.streamTo(url, 0, 0, first));
+        Assert.assertArrayEquals(sample, first.toByteArray());
+        Assert.assertEquals(600, jpegService.probe(url).getWidth());
+
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        jpegService.streamTo(url, 0, 0, second);
+        Assert.assertArrayEquals(sample, second.toByteArray());
+        Assert.assertEquals(1, fetches.get());
+        Assert.assertEquals(1, jpegService.getIndex().getSize());
+
+        // Converted when cached as PNG
+        ByteArrayOutputStream converted = new ByteArrayOutputStream();
+        Assert.assertEquals(Image.ContentType.PNG, cachedService.streamTo(url, 0, 0, converted));
+        Assert.assertEquals(600, service.from(new ByteArrayInputStream(converted.toByteArray())).getWidth());
+        Assert.assertEquals(0x89, converted.toByteArray()[0] & 0xFF);
+    }
+
+    @Test
+    public void testFetchThenTransform() throws Exception {
+        URL url = CachedServices.getSample();
+        AtomicInteger fetches = CachedServices.countFetches(cachedService);
+
+        // The original is fetched up front, the task only resizes and caches it
+        Callable<Image> task = cachedService.fetch(url, 140, 0);
+        Assert.assertEquals(1, fetches.get());
+        Assert.assertEquals(140, task.call().getWidth());
+        Assert.assertEquals(1, fetches.get());
+
+        // Cached sizes are read up front and only decoded by the task
+        Image cached = cachedService.fetch(url, 140, 0).call();
+        Assert.assertEquals(140, cached.getWidth());
+        Assert.assertEquals(url, cached.getUrl());
+        Assert.assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void testShardedRepository() throws Exception {
+        File repository = services.getRepository("sharded");
+        URL url = CachedServices.getSample();
+
+        CachedImageIOService flatService = services.newService("sharded");
+        flatService.fromURL(url, 170, 0);
+        Assert.assertEquals(4, repository.list().length);
+        flatService.shutdownCacheManager();
+
+        CachedImageIOService shardedService = services.newService("sharded", CachedImageIOService.SHARD_LEVELS_PROPERTY, "2");
+
+        // Found in the flat layout and moved into its shard on the way
+        Assert.assertEquals(170, shardedService.fromURL(url, 170, 0).getWidth());
+        Assert.assertEquals(0, shardedService.getExecutedRequestCount());
+        Assert.assertEquals(1, shardedService.migrateRepository());
+
+        File[] files = repository.listFiles();
+        Assert.assertEquals(3, files.length);
+        for (File file : files) {
+            Assert.assertTrue(file.getName(), file.isDirectory() || file.getName().startsWith(CacheIndex.FILE_NAME));
+        }
+        Assert.assertEquals(170, shardedService.fromURL(url, 170, 0).getWidth());
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        File repository = services.getRepository("stale");
+        URL url = CachedServices.getSample();
+        ManualExecutor cleaner = new ManualExecutor();
+        ManualExecutor refresher = new ManualExecutor();
+
+        CachedImageIOService staleService = services.newService("stale", CachedServices.CACHE_NAME, cleaner);
+        staleService.setRefresher(refresher);
+        staleService.setMaxStaleness(600);
+        staleService.setRevalidateWindow(0);
+        Assert.assertEquals(130, staleService.fromURL(url, 130, 0).getWidth());
+
+        // Expire the resized image a minute ago
+        File resized = null;
+        for (File file : repository.listFiles()) {
+            if (file.getName().contains("_w130")) {
+                resized = file;
+            }
+        }
+        long timeToLive = staleService.getOrCreateCache().getCacheConfiguration().getTimeToLiveSeconds();
+        resized.setLastModified(System.currentTimeMillis() - (timeToLive + 60) * 1000);
+        staleService.getOrCreateCache().removeQuiet(resized.getAbsolutePath());
+        Assert.assertFalse(staleService.expireFromRepository(resized.getAbsolutePath()));
+
+        Assert.assertEquals(130, staleService.fromURL(url, 130, 0).getWidth());
+        Assert.assertEquals(1, staleService.getStaleHitCount());
+        Assert.assertNull(staleService.getOrCreateCache().get(resized.getAbsolutePath()));
+
+        // Refreshed in the background
+        Assert.assertEquals(1, refresher.runAll());
+        Assert.assertNotNull(staleService.getOrCreateCache().get(resized.getAbsolutePath()));
+
+        // Too stale to serve, so deleted and fetched in the foreground
+        resized.setLastModified(System.currentTimeMillis() - (timeToLive + 700) * 1000);
+        staleService.getOrCreateCache().removeQuiet(resized.getAbsolutePath());
+        Assert.assertEquals(130, staleService.fromURL(url, 130, 0).getWidth());
+        Assert.assertEquals(1, staleService.getStaleHitCount());
+        Assert.assertEquals(0, refresher.runAll());
+        Assert.assertTrue(resized.lastModified() > System.currentTimeMillis() - 60000);
+        Assert.assertNotNull(staleService.getOrCreateCache().get(resized.getAbsolutePath()));
+
+        // The delete scheduled on the first expiry finds it written again meanwhile
+        cleaner.runAll();
+        Assert.assertTrue(resized.exists());
+
+        // Kept on expiry until past the maximum staleness
+        staleService.getOrCreateCache().removeQuiet(resized.getAbsolutePath());
+        resized.setLastModified(System.currentTimeMillis() - (timeToLive + 600) * 1000 + 1500);
+        Assert.assertFalse(staleService.expireFromRepository(resized.getAbsolutePath()));
+        long delay = cleaner.getDelays().get(0);
+        Assert.assertTrue(String.valueOf(delay), delay > 0 && delay <= 1500);
+
+        // Deleted once it has passed
+        resized.setLastModified(resized.lastModified() - delay);
+        Assert.assertEquals(1, cleaner.runAll());
+        Assert.assertFalse(resized.exists());
+    }
+
+    @Test
+    public void testResizeFromLargerDerivative() throws Exception {
+        URL url = CachedServices.getSample();
+
+        CachedImageIOService derivingService = services.newService("derivatives");
+
+        Assert.assertEquals(400, derivingService.fromURL(url, 400, 0).getWidth());
+        Assert.assertEquals(0, derivingService.getResizedFromDerivativeCount());
+
+        Assert.assertEquals(200, derivingService.fromURL(url, 200, 0).getWidth());
+        Assert.assertEquals(1, derivingService.getResizedFromDerivativeCount());
+
+        // Square crop and stretch of the whole image
+        Image square = derivingService.fromURL(url, 150, 150);
+        Assert.assertEquals(150, square.getHeight());
+        Image stretched = derivingService.fromURL(url, 300, 100);
+        Assert.assertEquals(300, stretched.getWidth());
+        Assert.assertEquals(100, stretched.getHeight());
+        Assert.assertEquals(3, derivingService.getResizedFromDerivativeCount());
+
+        // Neither the cropped nor the stretched derivative is used for these
+        Assert.assertEquals(50, derivingService.fromURL(url, 0, 50).getHeight());
+        Assert.assertEquals(4, derivingService.getResizedFromDerivativeCount());
+        Assert.assertEquals(500, derivingService.fromURL(url, 500, 0).getWidth());
+        Assert.assertEquals(4, derivingService.getResizedFromDerivativeCount());
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        URL url = CachedServices.getSample();
+
+        CachedImageIOService prefetchingService = services.newService("prefetch");
+        AtomicInteger fetches = CachedServices.countFetches(prefetchingService);
+
+        PrefetchRequest sample = new PrefetchRequest(url).addSize(100, 0).addSize(0, 80).addSize(60, 60);
+        PrefetchRequest missing = new PrefetchRequest(new URL(url, "missing.jpg")).addSize(100, 0);
+        final List<PrefetchRequest> failed = new ArrayList<PrefetchRequest>();
+        PrefetchSummary summary = prefetchingService.prefetch(Arrays.asList(sample, missing), 2, new PrefetchListener() {
+            public void onPrefetched(PrefetchRequest request, int resized, int complete) {
+            }
+
+            public void onFailure(PrefetchRequest request, Exception e, int complete) {
+                synchronized (failed) {
+                    failed.add(request);
+                }
+            }
+        });
+        Assert.assertEquals(1, summary.getPrefetchedCount());
+        Assert.assertEquals(3, summary.getResizedCount());
+        Assert.assertEquals(1, summary.getFailedCount());
+        Assert.assertEquals(Collections.singletonList(missing), failed);
+        Assert.assertEquals(2, fetches.get());
+
+        // All sizes are now served from the repository
+        summary = prefetchingService.prefetch(Collections.singletonList(sample), 2, null);
+        Assert.assertEquals(0, summary.getResizedCount());
+        Assert.assertEquals(3, summary.getAlreadyCachedCount());
+        long executed = prefetchingService.getExecutedRequestCount();
+        Assert.assertEquals(80, prefetchingService.fromURL(url, 0, 80).getHeight());
+        Assert.assertEquals(executed, prefetchingService.getExecutedRequestCount());
+        Assert.assertEquals(2, fetches.get());
+    }
+
     @Ignore
     @Test
     public void testCaching() throws Exception {
@@ -131,13 +357,14 @@ public class CachedImageServiceTest {
 
 
     }
+
     private Image getImage() {
         return getImage("sample.jpg");
     }
 
     private Image getImage(String name) {
         try {
-            return new ImageIOService().from(new java.io.FileInputStream(new File(this.getClass().getClassLoader().getResource(name).getFile())));
+            return new ImageIOService().from(new FileInputStream(new File(this.getClass().getClassLoader().getResource(name).getFile())));
         } catch (IOException e) {
             logger.error("Failed to get image", e);
         }
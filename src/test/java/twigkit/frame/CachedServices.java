@@ -0,0 +1,110 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.rules.TemporaryFolder;
+import twigkit.frame.cache.Validators;
+import twigkit.frame.origin.OriginFetcher;
+import twigkit.frame.origin.OriginResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Temporary folder holding the repositories of cached image services, which are shut down after the test.
+ *
+ * @author mr.olafsson
+ */
+public class CachedServices extends TemporaryFolder {
+
+    public static final String CACHE_NAME = "frame-cache";
+
+    private final List<CachedImageIOService> services = new ArrayList<CachedImageIOService>();
+
+    @Override
+    protected void after() {
+        for (CachedImageIOService service : services) {
+            service.shutdownCacheManager();
+        }
+        services.clear();
+        super.after();
+    }
+
+    /**
+     * @return A service caching in a repository of the given name, with the given pairs of property names and values
+     */
+    public CachedImageIOService newService(String repository, String... properties) {
+        Properties settings = new Properties();
+        settings.setProperty(CachedImageIOService.CACHE_NAME_PROPERTY, CACHE_NAME);
+        settings.setProperty(CachedImageIOService.SERVICES_IMAGES_OFFLINE_PATH, getRepository(repository).getAbsolutePath());
+        for (int i = 0; i + 1 < properties.length; i += 2) {
+            settings.setProperty(properties[i], properties[i + 1]);
+        }
+        CachedImageIOService service = new CachedImageIOService(settings);
+        services.add(service);
+        return service;
+    }
+
+    /**
+     * @return A service caching in a repository of the given name, evicting and deleting files on the given executor
+     */
+    public CachedImageIOService newService(String repository, String cacheName, ScheduledExecutorService cleaner) {
+        CachedImageIOService service = new CachedImageIOService();
+        services.add(service);
+        service.setCleaner(cleaner);
+        service.setOfflinePath(getRepository(repository).getAbsolutePath());
+        service.setCacheName(cacheName);
+        return service;
+    }
+
+    public File getRepository(String name) {
+        return new File(getRoot(), name);
+    }
+
+    /**
+     * @return A copy of the sample image in the folder, to change as the origin
+     */
+    public File copySample(String name) throws IOException {
+        File copy = new File(getRoot(), name);
+        FileUtils.copyFile(new File(getSample().getFile()), copy);
+        return copy;
+    }
+
+    public static URL getSample() {
+        return CachedServices.class.getClassLoader().getResource("sample.jpg");
+    }
+
+    /**
+     * @return Number of requests the service makes to the origin from now on
+     */
+    public static AtomicInteger countFetches(CachedImageIOService service) {
+        final OriginFetcher fetcher = service.getOriginFetcher();
+        final AtomicInteger fetches = new AtomicInteger();
+        service.setOriginFetcher(new OriginFetcher() {
+            public OriginResponse fetch(URL url, Map<String, String> headers, Validators validators) throws IOException {
+                fetches.incrementAndGet();
+                return fetcher.fetch(url, headers, validators);
+            }
+        });
+        return fetches;
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author mr.olafsson
+ */
+public class ImageIOServiceTest {
+
+    private final ImageIOService service = new ImageIOService();
+
+    @Test
+    public void testReusedWritersWriteTheSame() throws Exception {
+        Image image = noise(200, 100, BufferedImage.TYPE_INT_ARGB);
+        for (Image.ContentType contentType : new Image.ContentType[]{Image.ContentType.JPEG, Image.ContentType.PNG}) {
+            ByteArrayOutputStream first = new ByteArrayOutputStream(), second = new ByteArrayOutputStream();
+            service.write(image, first, contentType, 0.7f);
+            service.write(image, second, contentType, 0.7f);
+            Assert.assertTrue(contentType.name(), Arrays.equals(first.toByteArray(), second.toByteArray()));
+
+            Image read = service.from(new ByteArrayInputStream(first.toByteArray()));
+            Assert.assertEquals(200, read.getWidth());
+            Assert.assertEquals(100, read.getHeight());
+        }
+    }
+
+    @Test
+    public void testDisposeWriters() throws Exception {
+        Image image = noise(50, 50, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream first = new ByteArrayOutputStream(), second = new ByteArrayOutputStream();
+        service.write(image, first, Image.ContentType.JPEG, 0.7f);
+        service.write(image, first, Image.ContentType.PNG);
+        Assert.assertEquals(2, service.getIdleWriterCount());
+
+        service.disposeWriters();
+        Assert.assertEquals(0, service.getIdleWriterCount());
+
+        // Looked up again when next needed
+        service.write(image, second, Image.ContentType.JPEG, 0.7f);
+        service.write(image, second, Image.ContentType.PNG);
+        Assert.assertTrue(Arrays.equals(first.toByteArray(), second.toByteArray()));
+        Assert.assertEquals(2, service.getIdleWriterCount());
+    }
+
+    @Test
+    public void testProgressiveJPEG() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        service.write(noise(64, 64, BufferedImage.TYPE_INT_RGB), bytes, Image.ContentType.JPEG, new WriteOptions(0.8f, true));
+        Assert.assertTrue(hasMarker(bytes.toByteArray(), 0xC2));
+
+        bytes.reset();
+        service.write(noise(64, 64, BufferedImage.TYPE_INT_RGB), bytes, Image.ContentType.JPEG, new WriteOptions(0.8f, false));
+        Assert.assertFalse(hasMarker(bytes.toByteArray(), 0xC2));
+    }
+
+    @Test
+    public void testFlushesWhilstWriting() throws Exception {
+        for (Image.ContentType contentType : new Image.ContentType[]{Image.ContentType.JPEG, Image.ContentType.PNG}) {
+            FlushCountingOutputStream outputStream = new FlushCountingOutputStream();
+            WriteOptions options = new WriteOptions(0.9f, false);
+            options.setFlushBytes(16 * 1024);
+            service.write(noise(800, 800, BufferedImage.TYPE_INT_RGB), outputStream, contentType, options);
+
+            // Flushed several times along the way, with bytes to send each time
+            Assert.assertTrue(contentType.name(), outputStream.flushes > 2);
+            Assert.assertTrue(contentType.name(), outputStream.firstFlush > 0 && outputStream.firstFlush < outputStream.size() / 2);
+        }
+    }
+
+    @Test
+    public void testNothingWrittenWithoutWriter() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        service.write(noise(30, 20, BufferedImage.TYPE_INT_RGB), outputStream, Image.ContentType.UNKNOWN);
+        Assert.assertEquals(0, outputStream.size());
+    }
+
+    @Test
+    public void testNothingWrittenWhenFailingEarly() throws Exception {
+        // Fails reading the pixels, once the header is written
+        BufferedImage failing = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB) {
+            @Override
+            public Raster getData(Rectangle rect) {
+                throw new IllegalStateException("Pixels unavailable");
+            }
+        };
+        FlushCountingOutputStream outputStream = new FlushCountingOutputStream();
+        try {
+            service.write(new Image(failing), outputStream, Image.ContentType.PNG);
+            Assert.fail("Expected the write to fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        Assert.assertEquals(0, outputStream.size());
+        Assert.assertEquals(0, outputStream.flushes);
+
+        // The writer is not reused, so the next write is whole
+        service.write(noise(30, 20, BufferedImage.TYPE_INT_RGB), outputStream, Image.ContentType.PNG);
+        Assert.assertEquals(30, service.from(new ByteArrayInputStream(outputStream.toByteArray())).getWidth());
+    }
+
+    @Test
+    public void testProbe() throws Exception {
+        ImageInfo info = service.probe(getClass().getClassLoader().getResource("sample.jpg"));
+        Image image = service.fromURL(getClass().getClassLoader().getResource("sample.jpg"));
+        Assert.assertEquals(new ImageInfo(image.getWidth(), image.getHeight(), Image.ContentType.JPEG, 1), info);
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        service.write(noise(30, 20, BufferedImage.TYPE_INT_ARGB), png, Image.ContentType.PNG);
+        Assert.assertEquals(new ImageInfo(30, 20, Image.ContentType.PNG, 1), service.probe(new ByteArrayInputStream(png.toByteArray())));
+
+        info = service.probe(getClass().getClassLoader().getResource("multipage-sample.tif"));
+        Assert.assertEquals(Image.ContentType.TIFF, info.getContentType());
+        Assert.assertEquals(8, info.getPageCount());
+        Assert.assertTrue(info.getWidth() > 0);
+
+        Assert.assertNull(service.probe(new ByteArrayInputStream("not an image".getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void testSubsampledRead() throws Exception {
+        BasicImageIOService resizer = new BasicImageIOService();
+        byte[] sample = FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource("sample.jpg").getFile()));
+        Image image = resizer.from(new ByteArrayInputStream(sample), 100, 0);
+
+        // Decoded at a fraction of the 600px source but still larger than the requested size
+        Assert.assertEquals(200, image.getWidth());
+        Assert.assertEquals(100, resizer.resize(image, 100, 0).getWidth());
+
+        // Resized to exactly the dimensions the full 600x450 source gives, where rounding the subsampled one would not
+        ByteArrayOutputStream landscape = new ByteArrayOutputStream();
+        resizer.write(new Image(resizer.from(new ByteArrayInputStream(sample)).getBufferedImage().getSubimage(0, 0, 600, 450)), landscape, Image.ContentType.JPEG);
+        Image resized = resizer.resize(resizer.from(new ByteArrayInputStream(landscape.toByteArray()), 0, 48), 0, 48);
+        Assert.assertEquals(64, resized.getWidth());
+        Assert.assertEquals(48, resized.getHeight());
+        resized = resizer.resize(resizer.from(new ByteArrayInputStream(landscape.toByteArray()), 32, 0), 32, 0);
+        Assert.assertEquals(32, resized.getWidth());
+        Assert.assertEquals(24, resized.getHeight());
+    }
+
+    private static Image noise(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt() | 0xFF000000);
+            }
+        }
+        return new Image(image);
+    }
+
+    private static boolean hasMarker(byte[] jpeg, int marker) {
+        for (int i = 0; i < jpeg.length - 1; i++) {
+            if ((jpeg[i] & 0xFF) == 0xFF && (jpeg[i + 1] & 0xFF) == marker) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class FlushCountingOutputStream extends ByteArrayOutputStream {
+
+        private int flushes;
+        private int firstFlush;
+
+        @Override
+        public void flush() {
+            if (flushes++ == 0) {
+                firstFlush = size();
+            }
+        }
+    }
+}
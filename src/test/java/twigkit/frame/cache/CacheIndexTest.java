@@ -0,0 +1,333 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.cache;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import twigkit.frame.CachedImageIOService;
+import twigkit.frame.CachedServices;
+import twigkit.frame.Image;
+import twigkit.frame.ImageInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileWriter;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author mr.olafsson
+ */
+public class CacheIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public CachedServices services = new CachedServices();
+
+    @Test
+    public void testReplayedOnOpen() throws Exception {
+        File file = new File(folder.getRoot(), CacheIndex.FILE_NAME);
+        CacheIndex index = new CacheIndex(file);
+        index.put("abc.png", 1000, 600, 400, Image.ContentType.PNG);
+        index.put("abc_w100.png", 100, 100, 67, Image.ContentType.PNG);
+        index.put("def.jpg", 500, 300, 300, Image.ContentType.JPEG);
+        index.remove("def.jpg");
+        index.touch("abc.png");
+        index.close();
+
+        // A record cut short by a crash is skipped
+        FileWriter writer = new FileWriter(file, true);
+        writer.write("+ ghi.png 12");
+        writer.close();
+
+        index = new CacheIndex(file);
+        try {
+            Assert.assertEquals(2, index.getSize());
+            Assert.assertEquals(1100, index.getBytes());
+            Assert.assertNull(index.get("def.jpg"));
+            Assert.assertNull(index.get("ghi.png"));
+
+            CacheIndex.Entry entry = index.get("abc_w100.png");
+            Assert.assertEquals(100, entry.getWidth());
+            Assert.assertEquals(67, entry.getHeight());
+            Assert.assertEquals(Image.ContentType.PNG, entry.getContentType());
+            Assert.assertEquals("abc", entry.getSource());
+            Assert.assertEquals(2, index.getBySource("abc").size());
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testUnknownHeaderRewritten() throws Exception {
+        File file = new File(folder.getRoot(), CacheIndex.FILE_NAME);
+        FileWriter writer = new FileWriter(file);
+        writer.write("frame-index 0\n+ abc.png 1000 600 400 PNG 0\n");
+        writer.close();
+
+        CacheIndex index = new CacheIndex(file);
+        try {
+            Assert.assertEquals(0, index.getSize());
+            index.put("def.png", 500, 300, 200, Image.ContentType.PNG);
+        } finally {
+            index.close();
+        }
+
+        index = new CacheIndex(file);
+        try {
+            Assert.assertEquals(1, index.getSize());
+            Assert.assertNull(index.get("abc.png"));
+            Assert.assertEquals(500, index.getBytes());
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testEmptyFileRewritten() throws Exception {
+        File file = new File(folder.getRoot(), CacheIndex.FILE_NAME);
+        Assert.assertTrue(file.createNewFile());
+
+        CacheIndex index = new CacheIndex(file);
+        try {
+            index.put("abc.png", 1000, 600, 400, Image.ContentType.PNG);
+        } finally {
+            index.close();
+        }
+
+        index = new CacheIndex(file);
+        try {
+            Assert.assertEquals(1, index.getSize());
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testLockedWhilstOpen() throws Exception {
+        File file = new File(folder.getRoot(), CacheIndex.FILE_NAME);
+        CacheIndex index = new CacheIndex(file);
+        try {
+            new CacheIndex(file).close();
+            Assert.fail("Opened an index in use");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            index.close();
+        }
+
+        new CacheIndex(file).close();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedFirst() throws Exception {
+        CacheIndex index = new CacheIndex(new File(folder.getRoot(), CacheIndex.FILE_NAME));
+        try {
+            index.put("a.png", 1, 1, 1, Image.ContentType.PNG);
+            index.put("b.png", 1, 1, 1, Image.ContentType.PNG);
+            index.put("c.png", 1, 1, 1, Image.ContentType.PNG);
+            index.touch("a.png");
+            index.get("b.png");
+
+            Assert.assertEquals("b.png", index.getEntries().get(0).getName());
+            Assert.assertEquals("a.png", index.getEntries().get(2).getName());
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentChangesWritten() throws Exception {
+        File file = new File(folder.getRoot(), CacheIndex.FILE_NAME);
+        final CacheIndex index = new CacheIndex(file);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 100; i++) {
+                    index.put(thread + "-" + i + ".png", 1, 1, 1, Image.ContentType.PNG);
+                    index.touch(thread + "-" + (i / 2) + ".png");
+                    if (i % 10 == 0) {
+                        index.remove(thread + "-" + i + ".png");
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(720, index.getSize());
+        index.close();
+
+        CacheIndex replayed = new CacheIndex(file);
+        try {
+            Assert.assertEquals(720, replayed.getSize());
+            Assert.assertEquals(720, replayed.getBytes());
+            Assert.assertNull(replayed.get("3-10.png"));
+            Assert.assertNotNull(replayed.get("3-11.png"));
+        } finally {
+            replayed.close();
+        }
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        File file = new File(folder.getRoot(), CacheIndex.FILE_NAME);
+        CacheIndex index = new CacheIndex(file);
+        for (int i = 0; i < 100; i++) {
+            index.put("a.png", i, 1, 1, Image.ContentType.PNG);
+        }
+        long before = file.length();
+        index.compact();
+        Assert.assertTrue(file.length() < before / 50);
+
+        index.put("b.png", 1, 1, 1, Image.ContentType.PNG);
+        index.close();
+
+        index = new CacheIndex(file);
+        try {
+            Assert.assertEquals(2, index.getSize());
+            Assert.assertEquals(100, index.getBytes());
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testInfoSurvivesCompaction() throws Exception {
+        File file = new File(folder.getRoot(), CacheIndex.FILE_NAME);
+        CacheIndex index = new CacheIndex(file);
+        long before = System.currentTimeMillis();
+        index.setInfo("abc", new ImageInfo(2000, 1000, Image.ContentType.TIFF, 8));
+        Assert.assertEquals(8, index.getInfo("abc", before).getPageCount());
+        Assert.assertNull(index.getInfo("abc", System.currentTimeMillis() + 1000));
+        Assert.assertNull(index.getInfo("def", 0));
+        index.compact();
+        index.close();
+
+        index = new CacheIndex(file);
+        try {
+            Assert.assertEquals(new ImageInfo(2000, 1000, Image.ContentType.TIFF, 8), index.getInfo("abc", before));
+            Assert.assertEquals(0, index.getSize());
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testInfoDroppedWithSource() throws Exception {
+        File file = new File(folder.getRoot(), CacheIndex.FILE_NAME);
+        CacheIndex index = new CacheIndex(file);
+        index.setInfo("abc", new ImageInfo(600, 400, Image.ContentType.PNG, 1));
+        index.put("abc.png", 1000, 600, 400, Image.ContentType.PNG);
+        index.put("abc_w100.png", 100, 100, 67, Image.ContentType.PNG);
+        index.remove("abc.png");
+        Assert.assertNotNull(index.getInfo("abc", 0));
+
+        // Gone with the last image of the source, also when replayed
+        index.remove("abc_w100.png");
+        Assert.assertNull(index.getInfo("abc", 0));
+        index.close();
+
+        index = new CacheIndex(file);
+        try {
+            Assert.assertNull(index.getInfo("abc", 0));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testExpiredInfoDropped() throws Exception {
+        File file = new File(folder.getRoot(), CacheIndex.FILE_NAME);
+        long now = System.currentTimeMillis();
+        FileWriter writer = new FileWriter(file);
+        writer.write("frame-index 1\nI abc 600 400 PNG 1 " + (now - 120000) + "\nI def 300 200 JPEG 1 " + now + "\n");
+        writer.close();
+
+        CacheIndex index = new CacheIndex(file, 60000);
+        try {
+            Assert.assertNull(index.getInfo("abc", 0));
+            Assert.assertNotNull(index.getInfo("def", 0));
+            index.compact();
+        } finally {
+            index.close();
+        }
+
+        // Not written out when compacted
+        index = new CacheIndex(file);
+        try {
+            Assert.assertNull(index.getInfo("abc", 0));
+            Assert.assertNotNull(index.getInfo("def", 0));
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testRepositoryInUse() throws Exception {
+        URL url = CachedServices.getSample();
+        CachedImageIOService first = services.newService("shared");
+        CachedImageIOService second = services.newService("shared");
+
+        // Only one service at a time keeps the index, the other continues without
+        Assert.assertNotNull(first.getIndex());
+        Assert.assertNull(second.getIndex());
+        first.shutdownCacheManager();
+        Assert.assertEquals(180, second.fromURL(url, 180, 0).getWidth());
+        Assert.assertEquals(-1, second.getRepositoryBytes());
+
+        // Restarted once the first is gone
+        CachedImageIOService restarted = services.newService("shared");
+        Assert.assertNotNull(restarted.getIndex());
+        Assert.assertEquals(180, restarted.fromURL(url, 180, 0).getWidth());
+    }
+
+    @Test
+    public void testProbeIsCached() throws Exception {
+        URL url = CachedServices.getSample();
+        URL tiff = this.getClass().getClassLoader().getResource("multipage-sample.tif");
+
+        CachedImageIOService probingService = services.newService("probe");
+        AtomicInteger fetches = CachedServices.countFetches(probingService);
+
+        ImageInfo info = probingService.probe(tiff);
+        Assert.assertEquals(8, info.getPageCount());
+        Assert.assertEquals(info, probingService.probe(tiff));
+        Assert.assertEquals(1, fetches.get());
+
+        // Recorded when the original is fetched
+        Image image = probingService.fromURL(url);
+        Assert.assertEquals(2, fetches.get());
+        Assert.assertEquals(new ImageInfo(image.getWidth(), image.getHeight(), Image.ContentType.JPEG, 1), probingService.probe(url));
+        Assert.assertEquals(2, fetches.get());
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues the tasks given to it until the test runs them, rather than running them on a thread of its own. Delayed
+ * tasks are queued along with their delay and run whenever the test says, as if the time had passed.
+ *
+ * @author mr.olafsson
+ */
+public class ManualExecutor extends ScheduledThreadPoolExecutor {
+
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+    private final List<Long> delays = new ArrayList<Long>();
+
+    public ManualExecutor() {
+        super(1);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        queue(command, 0);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        queue(command, unit.toMillis(delay));
+        return null;
+    }
+
+    private synchronized void queue(Runnable command, long delay) {
+        tasks.add(command);
+        delays.add(delay);
+    }
+
+    /**
+     * @return Delays in milliseconds of the tasks queued, in the order they were given
+     */
+    public synchronized List<Long> getDelays() {
+        return new ArrayList<Long>(delays);
+    }
+
+    /**
+     * Runs the queued tasks in order, including those they queue in turn.
+     *
+     * @return Number of tasks run
+     */
+    public int runAll() {
+        int count = 0;
+        for (Runnable task = next(); task != null; task = next()) {
+            task.run();
+            count++;
+        }
+        return count;
+    }
+
+    private synchronized Runnable next() {
+        if (tasks.isEmpty()) {
+            return null;
+        }
+        delays.remove(0);
+        return tasks.remove(0);
+    }
+}
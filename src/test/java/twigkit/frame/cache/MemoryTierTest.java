@@ -0,0 +1,67 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author mr.olafsson
+ */
+public class MemoryTierTest {
+
+    @Test
+    public void testLeastRecentlyUsedEvictedByBytes() {
+        MemoryTier tier = new MemoryTier(800, false);
+        tier.put("a", new byte[100]);
+        tier.put("b", new byte[100]);
+        Assert.assertNotNull(tier.get("a"));
+
+        for (int i = 0; i < 7; i++) {
+            tier.put("c" + i, new byte[100]);
+        }
+
+        Assert.assertNotNull(tier.get("a"));
+        Assert.assertNull(tier.get("b"));
+        Assert.assertEquals(800, tier.getBytes());
+        Assert.assertEquals(1, tier.getEvictionCount());
+        Assert.assertEquals(2, tier.getHitCount());
+        Assert.assertEquals(1, tier.getMissCount());
+    }
+
+    @Test
+    public void testLargeEntriesAreNotHeld() {
+        MemoryTier tier = new MemoryTier(800, true);
+        tier.put("small", new byte[100]);
+        tier.put("large", new byte[101]);
+
+        Assert.assertNull(tier.get("large"));
+        Assert.assertEquals(100, tier.getBytes());
+    }
+
+    @Test
+    public void testReadsDoNotShareBufferPosition() {
+        MemoryTier tier = new MemoryTier(800, true);
+        tier.put("key", new byte[]{1, 2, 3});
+
+        ByteBuffer first = tier.get("key");
+        first.get(new byte[3]);
+        ByteBuffer second = tier.get("key");
+
+        Assert.assertEquals(3, second.remaining());
+        Assert.assertEquals(1, second.get());
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.cache;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import twigkit.frame.CachedImageIOService;
+import twigkit.frame.CachedServices;
+import twigkit.frame.Image;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author mr.olafsson
+ */
+public class RepositoryEvictorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public CachedServices services = new CachedServices();
+
+    @Test
+    public void testEvictsLeastRecentlyUsedBelowBudget() throws Exception {
+        final CacheIndex index = new CacheIndex(new File(folder.getRoot(), CacheIndex.FILE_NAME));
+        final List<String> evicted = new ArrayList<String>();
+        ManualExecutor executor = new ManualExecutor();
+
+        RepositoryEvictor evictor = new RepositoryEvictor(index, 1000, executor, new RepositoryEvictor.Remover() {
+            public void remove(CacheIndex.Entry entry) {
+                evicted.add(entry.getName());
+                index.remove(entry.getName());
+            }
+        });
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                index.put(i + ".png", 100, 1, 1, Image.ContentType.PNG);
+            }
+            index.touch("0.png");
+            evictor.check();
+            Assert.assertTrue(executor.getDelays().isEmpty());
+
+            index.put("10.png", 150, 1, 1, Image.ContentType.PNG);
+            evictor.check();
+            evictor.check();
+            Assert.assertEquals(1, executor.runAll());
+            Assert.assertEquals("[1.png, 2.png, 3.png]", evicted.toString());
+            Assert.assertEquals(850, evictor.getBytes());
+            Assert.assertEquals(3, evictor.getEvictionCount());
+            Assert.assertEquals(300, evictor.getEvictedBytes());
+        } finally {
+            evictor.shutdown(1, TimeUnit.SECONDS);
+            index.close();
+        }
+    }
+
+    @Test
+    public void testDeletesDroppedFiles() throws Exception {
+        CacheIndex index = new CacheIndex(new File(folder.getRoot(), CacheIndex.FILE_NAME));
+        final File kept = folder.newFile("kept.png");
+        final AtomicLong keptUntil = new AtomicLong(System.currentTimeMillis() + 500);
+        File removed = folder.newFile("removed.png");
+        File expired = folder.newFile("expired.png");
+        index.put(kept.getName(), 100, 1, 1, Image.ContentType.PNG);
+        index.put(removed.getName(), 100, 1, 1, Image.ContentType.PNG);
+        index.put(expired.getName(), 100, 1, 1, Image.ContentType.PNG);
+
+        ManualExecutor executor = new ManualExecutor();
+        RepositoryEvictor evictor = new RepositoryEvictor(index, 0, executor, null, new RepositoryEvictor.Retention() {
+            public long getRetainedUntil(File file) {
+                return file.equals(kept) ? keptUntil.get() : 0;
+            }
+        });
+        try {
+            Assert.assertTrue(evictor.delete(removed, false));
+            Assert.assertTrue(evictor.delete(expired, true));
+            Assert.assertFalse(evictor.delete(kept, true));
+            Assert.assertFalse(evictor.delete(new File(folder.getRoot(), "missing.png"), false));
+            Assert.assertTrue(kept.exists());
+            List<Long> delays = executor.getDelays();
+            Assert.assertEquals(3, delays.size());
+            Assert.assertEquals(0, delays.get(0).longValue());
+            Assert.assertEquals(0, delays.get(1).longValue());
+            Assert.assertTrue(delays.get(2) > 0 && delays.get(2) <= 500);
+
+            // The delayed delete runs once the retention has passed
+            keptUntil.set(System.currentTimeMillis());
+            Assert.assertEquals(3, executor.runAll());
+            Assert.assertFalse(kept.exists());
+            Assert.assertFalse(removed.exists());
+            Assert.assertFalse(expired.exists());
+            Assert.assertNull(index.get(removed.getName()));
+            Assert.assertEquals(0, evictor.getEvictionCount());
+        } finally {
+            evictor.shutdown(1, TimeUnit.SECONDS);
+            index.close();
+        }
+    }
+
+    @Test
+    public void testServiceRepositoryWithinBudget() throws Exception {
+        ManualExecutor cleaner = new ManualExecutor();
+        CachedImageIOService service = services.newService("limited", CachedServices.CACHE_NAME, cleaner);
+        service.setMaxBytes(200000);
+
+        Assert.assertEquals(180, service.fromURL(CachedServices.getSample(), 180, 0).getWidth());
+        Assert.assertTrue(service.getRepositoryBytes() > 200000);
+
+        // The original is evicted in the background, leaving the small derivative
+        cleaner.runAll();
+        Assert.assertTrue(service.getRepositoryBytes() > 0);
+        Assert.assertTrue(service.getRepositoryBytes() <= 180000);
+        Assert.assertEquals(1, service.getEvictor().getEvictionCount());
+    }
+
+    @Test
+    public void testExpiredKeptAcrossRestart() throws Exception {
+        File repository = services.getRepository("restart");
+        URL url = services.copySample("restart-source.jpg").toURI().toURL();
+
+        CachedImageIOService before = services.newService("restart", CachedImageIOService.CACHE_NAME_PROPERTY, "frame-cache-before-restart");
+        Assert.assertEquals(140, before.fromURL(url, 140, 0).getWidth());
+        Assert.assertEquals(105, before.fromURL(url, 0, 105).getHeight());
+        long timeToLive = before.getOrCreateCache().getCacheConfiguration().getTimeToLiveSeconds();
+        before.shutdownCacheManager();
+
+        File original = null, expired = null, fresh = null;
+        for (File file : repository.listFiles()) {
+            if (file.getName().contains("_w140")) {
+                expired = file;
+            } else if (file.getName().contains("_h105")) {
+                fresh = file;
+            } else if (file.getName().endsWith(".png")) {
+                original = file;
+            }
+        }
+        original.setLastModified(System.currentTimeMillis() - (timeToLive + 60) * 1000);
+        expired.setLastModified(System.currentTimeMillis() - (timeToLive + 2 * CachedImageIOService.DEFAULT_REVALIDATE_WINDOW) * 1000);
+
+        // Restarted with an empty cache
+        ManualExecutor cleaner = new ManualExecutor();
+        CachedImageIOService after = services.newService("restart", "frame-cache-after-restart", cleaner);
+
+        // Only the fresh file is cached again, the expired original is kept to be revalidated
+        Assert.assertTrue(after.getOrCreateCache().isKeyInCache(fresh.getAbsolutePath()));
+        Assert.assertFalse(after.getOrCreateCache().isKeyInCache(original.getAbsolutePath()));
+        Assert.assertTrue(original.exists());
+
+        // Past the revalidation window, so deleted
+        Assert.assertFalse(expired.exists());
+        Assert.assertNull(after.getIndex().get(expired.getName()));
+
+        // The origin confirms the original is current
+        Assert.assertEquals(600, after.fromURL(url).getWidth());
+        Assert.assertTrue(after.getOrCreateCache().isKeyInCache(original.getAbsolutePath()));
+        Assert.assertTrue(original.lastModified() > System.currentTimeMillis() - 60000);
+
+        // Kept after expiry until the revalidation window has passed too
+        after.setRevalidateWindow(1);
+        after.getOrCreateCache().removeQuiet(fresh.getAbsolutePath());
+        fresh.setLastModified(System.currentTimeMillis() - (timeToLive + 1) * 1000 + 1500);
+        Assert.assertFalse(after.expireFromRepository(fresh.getAbsolutePath()));
+        Assert.assertTrue(fresh.exists());
+        List<Long> delays = cleaner.getDelays();
+        long delay = delays.get(delays.size() - 1);
+        Assert.assertTrue(String.valueOf(delay), delay > 0 && delay <= 1500);
+
+        // Deleted once it has, the original kept as it was revalidated meanwhile
+        fresh.setLastModified(fresh.lastModified() - delay);
+        cleaner.runAll();
+        Assert.assertFalse(fresh.exists());
+        Assert.assertNull(after.getIndex().get(fresh.getName()));
+        Assert.assertTrue(original.exists());
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author mr.olafsson
+ */
+public class RequestCoalescerTest {
+
+    @Test
+    public void testConcurrentRequestsAreCoalesced() throws Exception {
+        final RequestCoalescer<String> coalescer = new RequestCoalescer<String>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final int threads = 8;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return coalescer.execute("key", new Callable<String>() {
+                        public String call() throws Exception {
+                            loads.incrementAndGet();
+                            release.await();
+                            return "value";
+                        }
+                    });
+                }
+            }));
+        }
+
+        while (coalescer.getCoalescedCount() < threads - 1) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+
+        for (Future<String> result : results) {
+            Assert.assertEquals("value", result.get());
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(1, coalescer.getExecutedCount());
+        Assert.assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    @Test
+    public void testFailureIsRethrownAndNotRetained() throws Exception {
+        RequestCoalescer<String> coalescer = new RequestCoalescer<String>();
+
+        try {
+            coalescer.execute("key", new Callable<String>() {
+                public String call() throws Exception {
+                    throw new IOException("origin unavailable");
+                }
+            });
+            Assert.fail("Expected the loader exception");
+        } catch (IOException e) {
+            Assert.assertEquals("origin unavailable", e.getMessage());
+        }
+
+        Assert.assertEquals("value", coalescer.execute("key", new Callable<String>() {
+            public String call() throws Exception {
+                return "value";
+            }
+        }));
+    }
+}
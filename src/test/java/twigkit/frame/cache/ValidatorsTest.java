@@ -0,0 +1,70 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.cache;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import twigkit.frame.BasicImageIOService;
+import twigkit.frame.CachedImageIOService;
+import twigkit.frame.CachedServices;
+
+import java.io.File;
+import java.net.URL;
+
+/**
+ * @author mr.olafsson
+ */
+public class ValidatorsTest {
+
+    @Rule
+    public CachedServices services = new CachedServices();
+
+    @Test
+    public void testRevalidation() throws Exception {
+        File repository = services.getRepository("revalidate");
+        File source = services.copySample("revalidate-source.jpg");
+        long lastModified = source.lastModified();
+        URL url = source.toURI().toURL();
+
+        CachedImageIOService revalidatingService = services.newService("revalidate");
+        Assert.assertEquals(140, revalidatingService.fromURL(url, 140, 0).getWidth());
+        Assert.assertNotNull(revalidatingService.getIndex().getOriginal(revalidatingService.getIndex().getEntries().get(0).getSource()).getValidators());
+
+        // Expire both entries, the files are kept
+        File[] files = repository.listFiles();
+        for (File file : files) {
+            if (file.getName().endsWith(".png")) {
+                revalidatingService.getOrCreateCache().removeQuiet(file.getAbsolutePath());
+                Assert.assertFalse(revalidatingService.expireFromRepository(file.getAbsolutePath()));
+            }
+        }
+
+        // Unchanged as far as the origin says, so the kept files are used
+        BasicImageIOService images = new BasicImageIOService();
+        images.write(images.resize(images.fromURL(url), 300, 0), source);
+        source.setLastModified(lastModified);
+        Assert.assertEquals(600, revalidatingService.fromURL(url).getWidth());
+        Assert.assertEquals(140, revalidatingService.fromURL(url, 140, 0).getWidth());
+        Assert.assertEquals(105, revalidatingService.fromURL(url, 0, 105).getHeight());
+
+        // Changed, so fetched again and the derivatives are dropped
+        for (File file : repository.listFiles()) {
+            revalidatingService.getOrCreateCache().removeQuiet(file.getAbsolutePath());
+        }
+        source.setLastModified(lastModified + 10000);
+        Assert.assertEquals(300, revalidatingService.fromURL(url).getWidth());
+        Assert.assertEquals(1, revalidatingService.getIndex().getBySource(revalidatingService.getIndex().getEntries().get(0).getSource()).size());
+    }
+}
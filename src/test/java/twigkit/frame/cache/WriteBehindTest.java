@@ -0,0 +1,167 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.cache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import twigkit.frame.CachedImageIOService;
+import twigkit.frame.CachedServices;
+import twigkit.frame.Image;
+
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author mr.olafsson
+ */
+public class WriteBehindTest {
+
+    @Rule
+    public CachedServices services = new CachedServices();
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger writes = new AtomicInteger();
+    private WriteBehind<String> writeBehind;
+
+    @After
+    public void shutdown() throws InterruptedException {
+        release.countDown();
+        if (writeBehind != null) {
+            writeBehind.shutdown(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testPendingUntilWritten() throws Exception {
+        writeBehind = new WriteBehind<String>(1, 1, WriteBehind.Policy.BLOCK);
+        Assert.assertTrue(writeBehind.submit("a", "value", blockingWrite()));
+        started.await();
+        Assert.assertEquals("value", writeBehind.getPending("a"));
+
+        release.countDown();
+        Assert.assertTrue(writeBehind.shutdown(10, TimeUnit.SECONDS));
+        Assert.assertNull(writeBehind.getPending("a"));
+        Assert.assertEquals(1, writeBehind.getWrittenCount());
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        writeBehind = new WriteBehind<String>(1, 1, WriteBehind.Policy.DROP);
+        Assert.assertTrue(writeBehind.submit("a", "1", blockingWrite()));
+        started.await();
+        Assert.assertTrue(writeBehind.submit("b", "2", countingWrite()));
+
+        //One writing, one queued, no room for a third
+        Assert.assertFalse(writeBehind.submit("c", "3", countingWrite()));
+        Assert.assertNull(writeBehind.getPending("c"));
+        Assert.assertEquals("2", writeBehind.getPending("b"));
+        Assert.assertEquals(1, writeBehind.getDroppedCount());
+
+        release.countDown();
+        Assert.assertTrue(writeBehind.shutdown(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, writeBehind.getWrittenCount());
+        Assert.assertEquals(1, writes.get());
+    }
+
+    @Test
+    public void testBlockWhenFull() throws Exception {
+        writeBehind = new WriteBehind<String>(1, 1, WriteBehind.Policy.BLOCK);
+        Assert.assertTrue(writeBehind.submit("a", "1", blockingWrite()));
+        started.await();
+        Assert.assertTrue(writeBehind.submit("b", "2", countingWrite()));
+
+        final AtomicBoolean queued = new AtomicBoolean();
+        Thread submitter = new Thread(new Runnable() {
+            public void run() {
+                queued.set(writeBehind.submit("c", "3", countingWrite()));
+            }
+        });
+        submitter.start();
+        submitter.join(200);
+        Assert.assertTrue(submitter.isAlive());
+
+        release.countDown();
+        submitter.join(10000);
+        Assert.assertTrue(queued.get());
+        Assert.assertTrue(writeBehind.shutdown(10, TimeUnit.SECONDS));
+        Assert.assertEquals(3, writeBehind.getWrittenCount());
+        Assert.assertEquals(0, writeBehind.getDroppedCount());
+    }
+
+    @Test
+    public void testShutdownDrainsQueue() throws Exception {
+        writeBehind = new WriteBehind<String>(1, 10, WriteBehind.Policy.BLOCK);
+        Assert.assertTrue(writeBehind.submit("a", "1", blockingWrite()));
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(writeBehind.submit("key" + i, "value", countingWrite()));
+        }
+        started.await();
+
+        release.countDown();
+        Assert.assertTrue(writeBehind.shutdown(10, TimeUnit.SECONDS));
+        Assert.assertEquals(5, writes.get());
+        Assert.assertEquals(0, writeBehind.getQueueSize());
+
+        //Nothing is accepted afterwards
+        Assert.assertFalse(writeBehind.submit("late", "value", countingWrite()));
+        Assert.assertNull(writeBehind.getPending("late"));
+    }
+
+    @Test
+    public void testPooledRastersAwaitWriteBehind() throws Exception {
+        URL url = CachedServices.getSample();
+        CachedImageIOService pooledService = services.newService("pooled",
+                CachedImageIOService.WRITE_BEHIND_THREADS_PROPERTY, "1",
+                CachedImageIOService.RASTER_POOL_BYTES_PROPERTY, "10000000");
+
+        Image image = pooledService.fromURL(url, 120, 0);
+        Assert.assertTrue(image.isPooled());
+        image.release();
+        Assert.assertTrue(pooledService.getWriteBehind().shutdown(10, TimeUnit.SECONDS));
+
+        // Written before its raster went back to the pool
+        Assert.assertEquals(1, pooledService.getRasterPool().getAllocationCount());
+        Assert.assertTrue(pooledService.getRasterPool().getBytes() > 0);
+        Image cached = pooledService.fromURL(url, 120, 0);
+        Assert.assertFalse(cached.isPooled());
+        Assert.assertEquals(120, cached.getWidth());
+    }
+
+    private Runnable blockingWrite() {
+        return new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private Runnable countingWrite() {
+        return new Runnable() {
+            public void run() {
+                writes.incrementAndGet();
+            }
+        };
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.origin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import twigkit.frame.BasicImageIOService;
+import twigkit.frame.CachedImageIOService;
+import twigkit.frame.CachedServices;
+import twigkit.frame.Image;
+import twigkit.frame.ImageInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author mr.olafsson
+ */
+public class HttpOriginFetcherTest {
+
+    private static final int LARGE_PADDING = 32 * 1024 * 1024;
+
+    @Rule
+    public CachedServices services = new CachedServices();
+
+    private HttpServer server;
+    private byte[] sample;
+    private String host;
+
+    @Before
+    public void start() throws Exception {
+        sample = FileUtils.readFileToByteArray(new File(this.getClass().getClassLoader().getResource("sample.jpg").getFile()));
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/sample.jpg", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                exchange.getResponseHeaders().set("Cache-Control", "public, max-age=60");
+                exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+                send(exchange, 200, sample);
+            }
+        });
+        server.createContext("/no-store.jpg", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                exchange.getResponseHeaders().set("Cache-Control", "private, No-Store");
+                send(exchange, 200, sample);
+            }
+        });
+        server.createContext("/large.jpg", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                //The sample followed by padding, far more than a header takes
+                exchange.sendResponseHeaders(200, sample.length + LARGE_PADDING);
+                OutputStream outputStream = exchange.getResponseBody();
+                try {
+                    outputStream.write(sample);
+                    byte[] padding = new byte[64 * 1024];
+                    for (int i = 0; i < LARGE_PADDING / padding.length; i++) {
+                        outputStream.write(padding);
+                    }
+                    outputStream.close();
+                } catch (IOException e) {
+                    //The client stopped reading
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/slow.jpg", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                send(exchange, 200, sample);
+            }
+        });
+        server.createContext("/missing.jpg", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 404, "Not found".getBytes("UTF-8"));
+            }
+        });
+        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        server.start();
+        host = "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testFetchAndRevalidate() throws Exception {
+        HttpOriginFetcher fetcher = new HttpOriginFetcher();
+        OriginResponse response = fetcher.fetch(url("/sample.jpg"), null, null);
+        Assert.assertArrayEquals(sample, response.getBody());
+        Assert.assertEquals("image/jpeg", response.getContentType());
+        Assert.assertEquals("\"v1\"", response.getValidators().getETag());
+        Assert.assertEquals(60, response.getValidators().getMaxAge());
+
+        OriginResponse revalidated = fetcher.fetch(url("/sample.jpg"), null, response.getValidators());
+        Assert.assertTrue(revalidated.isNotModified());
+
+        HttpOriginFetcher.HostMetrics metrics = fetcher.getMetrics(host);
+        Assert.assertEquals(2, metrics.getRequestCount());
+        Assert.assertEquals(1, metrics.getNotModifiedCount());
+        Assert.assertEquals(sample.length, metrics.getBytes());
+        Assert.assertTrue(metrics.getMaxLatencyMillis() >= metrics.getMeanLatencyMillis());
+    }
+
+    @Test
+    public void testErrorsAndLimits() throws Exception {
+        HttpOriginFetcher fetcher = new HttpOriginFetcher(1000, 200, 1000, 1);
+        expectFailure(fetcher, url("/missing.jpg"));
+        expectFailure(fetcher, url("/slow.jpg"));
+        expectFailure(fetcher, url("/sample.jpg"));
+        Assert.assertEquals(3, fetcher.getMetrics(host).getFailureCount());
+    }
+
+    @Test
+    public void testConnectionsPerHost() throws Exception {
+        final HttpOriginFetcher fetcher = new HttpOriginFetcher(200, 5000, HttpOriginFetcher.DEFAULT_MAX_BYTES, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread slow = new Thread() {
+            public void run() {
+                try {
+                    started.countDown();
+                    fetcher.fetch(url("/slow.jpg"), null, null);
+                } catch (IOException e) {
+                    // Checked by the request count below
+                }
+            }
+        };
+        slow.start();
+        started.await();
+        Thread.sleep(50);
+
+        // The only connection to the host is taken
+        expectFailure(fetcher, url("/sample.jpg"));
+        slow.join();
+        Assert.assertEquals(1, fetcher.getMetrics(host).getRequestCount());
+        Assert.assertEquals(1, fetcher.getMetrics(host).getFailureCount());
+    }
+
+    @Test
+    public void testNoStore() throws Exception {
+        HttpOriginFetcher fetcher = new HttpOriginFetcher();
+        Assert.assertTrue(fetcher.fetch(url("/sample.jpg"), null, null).isStorable());
+
+        OriginResponse response = fetcher.fetch(url("/no-store.jpg"), null, null);
+        Assert.assertFalse(response.isStorable());
+        Assert.assertArrayEquals(sample, response.getBody());
+    }
+
+    @Test
+    public void testNoStoreNotCached() throws Exception {
+        CachedImageIOService service = services.newService("no-store");
+        HttpOriginFetcher fetcher = new HttpOriginFetcher();
+        service.setOriginFetcher(fetcher);
+        URL url = url("/no-store.jpg");
+
+        Assert.assertEquals(120, service.fromURL(url, 120, 0).getWidth());
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        service.streamTo(url, 0, 0, stream);
+        Assert.assertEquals(600, service.from(new ByteArrayInputStream(stream.toByteArray())).getWidth());
+        Assert.assertEquals(120, service.fromURL(url, 120, 0).getWidth());
+
+        Assert.assertEquals(3, fetcher.getMetrics(host).getRequestCount());
+        Assert.assertEquals(0, service.getIndex().getSize());
+    }
+
+    @Test
+    public void testUnbounded() throws Exception {
+        HttpOriginFetcher fetcher = (HttpOriginFetcher) new BasicImageIOService().getOriginFetcher();
+        Assert.assertEquals(0, fetcher.getReadTimeout());
+        Assert.assertEquals(0, fetcher.getMaxConnectionsPerHost());
+        Assert.assertEquals(HttpOriginFetcher.MAX_BYTES_LIMIT, fetcher.getMaxBytes());
+        Assert.assertEquals(600, new BasicImageIOService().fromURL(url("/sample.jpg")).getWidth());
+
+        // Limits beyond what fits in an array are lowered to it
+        Assert.assertEquals(HttpOriginFetcher.MAX_BYTES_LIMIT, new HttpOriginFetcher(0, 0, Long.MAX_VALUE, 0).getMaxBytes());
+        try {
+            new HttpOriginFetcher(0, 0, -1, 0);
+            Assert.fail("Accepted a negative limit");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testProbeReadsHeaderOnly() throws Exception {
+        BasicImageIOService service = new BasicImageIOService();
+        HttpOriginFetcher fetcher = new HttpOriginFetcher(1000, 5000, 1024 * 1024, 1);
+        service.setOriginFetcher(fetcher);
+
+        ImageInfo info = service.probe(url("/large.jpg"));
+        Assert.assertEquals(600, info.getWidth());
+        Assert.assertEquals(600, info.getHeight());
+
+        HttpOriginFetcher.HostMetrics metrics = fetcher.getMetrics(host);
+        Assert.assertEquals(1, metrics.getRequestCount());
+        Assert.assertEquals(0, metrics.getFailureCount());
+        Assert.assertTrue(metrics.getBytes() > 0 && metrics.getBytes() < sample.length);
+
+        //The connection was given back when closed
+        Assert.assertEquals(Image.ContentType.JPEG, service.probe(url("/sample.jpg")).getContentType());
+    }
+
+    @Test
+    public void testOpenLimited() throws Exception {
+        HttpOriginFetcher fetcher = new HttpOriginFetcher(1000, 5000, 1000, 1);
+        InputStream inputStream = fetcher.open(url("/sample.jpg"), null);
+        try {
+            IOUtils.toByteArray(inputStream);
+            Assert.fail("Read beyond the limit");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            inputStream.close();
+        }
+        expectFailure(fetcher, url("/missing.jpg"));
+        Assert.assertEquals(2, fetcher.getMetrics(host).getRequestCount());
+    }
+
+    @Test
+    public void testUsedByImageService() throws Exception {
+        BasicImageIOService service = new BasicImageIOService();
+        HttpOriginFetcher fetcher = new HttpOriginFetcher();
+        service.setOriginFetcher(fetcher);
+
+        Assert.assertEquals(600, service.fromURL(url("/sample.jpg")).getWidth());
+        Assert.assertEquals(1, fetcher.getMetrics(host).getRequestCount());
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://" + host + path);
+    }
+
+    private void expectFailure(HttpOriginFetcher fetcher, URL url) {
+        try {
+            fetcher.fetch(url, null, null);
+            Assert.fail("Expected fetching " + url + " to fail");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(body);
+        outputStream.close();
+    }
+}
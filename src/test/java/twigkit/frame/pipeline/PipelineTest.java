@@ -0,0 +1,165 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.pipeline;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import twigkit.frame.BasicImageIOService;
+import twigkit.frame.CachedImageIOService;
+import twigkit.frame.CachedServices;
+import twigkit.frame.Image;
+import twigkit.frame.resample.Resampling;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+
+import static twigkit.frame.pipeline.Operation.*;
+
+/**
+ * @author mr.olafsson
+ */
+public class PipelineTest {
+
+    @Rule
+    public CachedServices services = new CachedServices();
+
+    @Test
+    public void testCanonicalForm() {
+        Pipeline pipeline = Pipeline.of(crop(0, 0, 800, 600), resize(400, -1), rotate(-270), rotate(360), encode(Image.ContentType.JPEG, 0.8f));
+        Assert.assertEquals("crop(0,0,800,600)|resize(400,0)|rotate(90)|encode(jpg,0.80)", pipeline.toString());
+        Assert.assertEquals(3, pipeline.getOperations().size());
+        Assert.assertEquals(Image.ContentType.JPEG, pipeline.getEncode().getContentType());
+
+        Pipeline same = Pipeline.of(crop(0, 0, 800, 600), resize(400, 0), rotate(90), encode(Image.ContentType.JPEG, 0.80f));
+        Assert.assertEquals(pipeline, same);
+        Assert.assertEquals(pipeline.getKey(), same.getKey());
+        Assert.assertFalse(pipeline.getKey().equals(Pipeline.of(resize(400, 0)).getKey()));
+    }
+
+    @Test
+    public void testMergedSteps() {
+        Pipeline merged = Pipeline.of(crop(100, 50, 400, 300), crop(50, -10, 500, 100), rotate(90), rotate(90), resize(100, 0), rotate(180), rotate(180));
+        Assert.assertEquals("crop(150,50,350,90)|rotate(180)|resize(100,0)", merged.toString());
+
+        //Only right angles add up to the same result
+        Assert.assertEquals("rotate(45)|rotate(45)", Pipeline.of(rotate(45), rotate(45)).toString());
+
+        //Crops clipped by the image, or not overlapping, are left as they are
+        Assert.assertEquals(2, Pipeline.of(crop(-10, 0, 100, 100), crop(10, 10, 50, 50)).getOperations().size());
+        Assert.assertEquals(2, Pipeline.of(crop(0, 0, 100, 100), crop(200, 0, 50, 50)).getOperations().size());
+
+        //PNG is lossless, whatever the quality asked for
+        Assert.assertEquals(Pipeline.of(resize(100, 0), encode(Image.ContentType.PNG, 0.5f)).getKey(),
+                Pipeline.of(resize(100, 0), encode(Image.ContentType.PNG, 1f)).getKey());
+        Assert.assertEquals("encode(png)", Pipeline.of(encode(Image.ContentType.PNG, 0.5f)).toString());
+    }
+
+    @Test
+    public void testMergedCropsMatch() {
+        BufferedImage source = new BufferedImage(400, 200, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 400; x++) {
+            for (int y = 0; y < 200; y++) {
+                source.setRGB(x, y, x * 0x100 + y);
+            }
+        }
+
+        PipelineExecutor executor = new PipelineExecutor(Resampling.BILINEAR);
+        BufferedImage first = executor.execute(source, Pipeline.of(crop(100, 20, 200, 150)));
+        BufferedImage separately = executor.execute(first, Pipeline.of(crop(30, -5, 400, 60)));
+        BufferedImage merged = executor.execute(source, Pipeline.of(crop(100, 20, 200, 150), crop(30, -5, 400, 60)));
+        Assert.assertEquals(1, Pipeline.of(crop(100, 20, 200, 150), crop(30, -5, 400, 60)).getOperations().size());
+        Assert.assertEquals(separately.getWidth(), merged.getWidth());
+        Assert.assertEquals(separately.getHeight(), merged.getHeight());
+        Assert.assertEquals(separately.getRGB(0, 0), merged.getRGB(0, 0));
+        Assert.assertEquals(separately.getRGB(169, 54), merged.getRGB(169, 54));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeMustBeLast() {
+        Pipeline.of(encode(Image.ContentType.PNG, 1f), resize(100, 100));
+    }
+
+    @Test
+    public void testFusedCropResizeAndRotate() {
+        //Left half red, right half blue
+        BufferedImage source = new BufferedImage(400, 200, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 400; x++) {
+            for (int y = 0; y < 200; y++) {
+                source.setRGB(x, y, x < 200 ? 0xFF0000 : 0x0000FF);
+            }
+        }
+
+        PipelineExecutor executor = new PipelineExecutor(Resampling.BILINEAR);
+        BufferedImage result = executor.execute(source, Pipeline.of(crop(100, 0, 300, 200), resize(150, 0), rotate(90)));
+        Assert.assertEquals(100, result.getWidth());
+        Assert.assertEquals(150, result.getHeight());
+
+        //The red third of the crop ends up at the top once turned clockwise
+        Assert.assertEquals(0xFF0000, result.getRGB(50, 10) & 0xFFFFFF);
+        Assert.assertEquals(0x0000FF, result.getRGB(50, 140) & 0xFFFFFF);
+
+        //Crops after a rotation apply to the rotated image
+        result = executor.execute(source, Pipeline.of(rotate(180), crop(0, 0, 200, 200)));
+        Assert.assertEquals(200, result.getWidth());
+        Assert.assertEquals(0x0000FF, result.getRGB(100, 100) & 0xFFFFFF);
+
+        result = executor.execute(source, Pipeline.of(rotate(270), crop(0, 0, 200, 200), resize(50, 50)));
+        Assert.assertEquals(50, result.getWidth());
+        Assert.assertEquals(50, result.getHeight());
+        Assert.assertEquals(0x0000FF, result.getRGB(25, 25) & 0xFFFFFF);
+    }
+
+    @Test
+    public void testMatchesResize() throws Exception {
+        BasicImageIOService service = new BasicImageIOService();
+        Image image = new Image(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB));
+        for (int[] size : new int[][]{{100, 0}, {0, 50}, {80, 80}, {90, 40}}) {
+            Image resized = service.resize(image, size[0], size[1]);
+            Image processed = service.process(image, Pipeline.of(resize(size[0], size[1])));
+            Assert.assertEquals(resized.getWidth(), processed.getWidth());
+            Assert.assertEquals(resized.getHeight(), processed.getHeight());
+        }
+    }
+
+    @Test
+    public void testArbitraryRotationFitsImage() throws Exception {
+        BufferedImage source = new BufferedImage(100, 50, BufferedImage.TYPE_INT_RGB);
+        BufferedImage result = new PipelineExecutor(Resampling.BILINEAR).execute(source, Pipeline.of(rotate(45), resize(0, 100)));
+        Assert.assertEquals(100, result.getHeight());
+        Assert.assertEquals(100, result.getWidth());
+    }
+
+    @Test
+    public void testEqualServedFromCache() throws Exception {
+        URL url = CachedServices.getSample();
+
+        CachedImageIOService pipelineService = services.newService("pipeline");
+
+        Pipeline pipeline = Pipeline.of(crop(0, 0, 200, 100), rotate(90), encode(Image.ContentType.JPEG, 0.5f));
+        Image image = pipelineService.fromURL(url, true, null, pipeline);
+        Assert.assertEquals(100, image.getWidth());
+        Assert.assertEquals(200, image.getHeight());
+        long executed = pipelineService.getExecutedRequestCount();
+
+        // An equal pipeline is served from the cache, encoded as it asked
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Pipeline same = Pipeline.of(crop(0, 0, 200, 100), rotate(-270), encode(Image.ContentType.JPEG, 0.5f));
+        Assert.assertEquals(Image.ContentType.JPEG, pipelineService.streamTo(url, null, same, bytes));
+        Assert.assertEquals(executed, pipelineService.getExecutedRequestCount());
+        Assert.assertEquals(0xFF, bytes.toByteArray()[0] & 0xFF);
+        Assert.assertEquals(0xD8, bytes.toByteArray()[1] & 0xFF);
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.resample;
+
+import org.junit.Assert;
+import org.junit.Test;
+import twigkit.frame.BasicImageIOService;
+import twigkit.frame.Image;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * @author mr.olafsson
+ */
+public class RasterPoolTest {
+
+    @Test
+    public void testSteadyStateResizeReusesRasters() throws Exception {
+        RasterPool pool = new RasterPool(1024 * 1024);
+        BasicImageIOService service = new BasicImageIOService();
+        service.setRasterPool(pool);
+        Image image = new Image(new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB));
+
+        for (int i = 0; i < 10; i++) {
+            Image resized = service.resize(image, 100, 0);
+            Assert.assertEquals(75, resized.getHeight());
+            Assert.assertTrue(resized.release());
+        }
+        Assert.assertEquals(1, pool.getAllocationCount());
+        Assert.assertEquals(9, pool.getReuseCount());
+        Assert.assertEquals(100 * 75 * 4, pool.getBytes());
+        Assert.assertEquals(100 * 75 * 4, pool.getAllocatedBytes());
+
+        // Another size or type needs its own raster
+        service.resize(image, 50, 0).release();
+        service.resize(new Image(new BufferedImage(400, 300, BufferedImage.TYPE_INT_ARGB)), 100, 0).release();
+        Assert.assertEquals(3, pool.getAllocationCount());
+    }
+
+    @Test
+    public void testRetainedImagesAreNotReused() throws Exception {
+        RasterPool pool = new RasterPool(1024 * 1024);
+        Image image = new Image(pool.acquire(BufferedImage.TYPE_INT_RGB, 10, 10), pool);
+
+        image.retain();
+        Assert.assertFalse(image.release());
+        Assert.assertEquals(0, pool.getBytes());
+        Assert.assertNotNull(image.getBufferedImage());
+
+        Assert.assertTrue(image.release());
+        Assert.assertFalse(image.tryRetain());
+        Assert.assertEquals(400, pool.getBytes());
+
+        // Images not from a pool are left alone
+        Image plain = new Image(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB));
+        Assert.assertFalse(plain.release());
+        Assert.assertNotNull(plain.getBufferedImage());
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        RasterPool pool = new RasterPool(500);
+        Assert.assertTrue(pool.release(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB)));
+        Assert.assertFalse(pool.release(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB)));
+        Assert.assertEquals(1, pool.getDiscardCount());
+        Assert.assertEquals(400, pool.getBytes());
+
+        pool.clear();
+        Assert.assertEquals(0, pool.getBytes());
+    }
+}
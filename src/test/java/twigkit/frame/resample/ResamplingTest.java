@@ -0,0 +1,147 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.resample;
+
+import org.junit.Assert;
+import org.junit.Test;
+import twigkit.frame.BasicImageIOService;
+import twigkit.frame.Image;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * @author mr.olafsson
+ */
+public class ResamplingTest {
+
+    @Test
+    public void testResizeWithEveryResampling() throws Exception {
+        BasicImageIOService service = new BasicImageIOService();
+        Image image = service.from(new FileInputStream(new File(this.getClass().getClassLoader().getResource("sample.jpg").getFile())));
+
+        for (Resampling resampling : Resampling.values()) {
+            Image resized = service.resize(image, 100, 0, resampling);
+            Assert.assertEquals(resampling.name(), 100, resized.getWidth());
+            Assert.assertEquals(resampling.name(), 100, resized.getHeight());
+        }
+    }
+
+    @Test
+    public void testSolidColourIsPreserved() {
+        for (int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR}) {
+            BufferedImage source = filled(new BufferedImage(301, 203, type), new Color(200, 100, 50));
+
+            for (Resampling resampling : Resampling.values()) {
+                BufferedImage destination = new BufferedImage(37, 29, BufferedImage.TYPE_INT_ARGB);
+                resampling.resample(source, destination);
+                Assert.assertEquals(resampling.name(), 0xFFC86432, destination.getRGB(18, 14));
+                Assert.assertEquals(resampling.name(), 0xFFC86432, destination.getRGB(0, 28));
+            }
+        }
+    }
+
+    @Test
+    public void testByteDestinationsMatchInt() throws Exception {
+        BufferedImage source = new BasicImageIOService().from(new FileInputStream(new File(this.getClass().getClassLoader().getResource("sample.jpg").getFile()))).getBufferedImage();
+        BufferedImage expected = new BufferedImage(90, 70, BufferedImage.TYPE_INT_ARGB);
+        Resampling.LANCZOS.resample(source, expected);
+
+        for (int type : new int[]{BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR}) {
+            BufferedImage actual = new BufferedImage(90, 70, type);
+            Resampling.LANCZOS.resample(source, actual);
+            for (int y = 0; y < expected.getHeight(); y++) {
+                for (int x = 0; x < expected.getWidth(); x++) {
+                    Assert.assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCustomTypeResampledIntoByteImage() {
+        BufferedImage custom = ImageTypeSpecifier.createInterleaved(ColorSpace.getInstance(ColorSpace.CS_sRGB), new int[]{0, 1, 2, 3},
+                DataBuffer.TYPE_USHORT, true, false).createBufferedImage(10, 10);
+        Assert.assertEquals(BufferedImage.TYPE_CUSTOM, custom.getType());
+        Assert.assertEquals(BufferedImage.TYPE_4BYTE_ABGR, Resampling.getDestinationType(custom));
+        Assert.assertEquals(BufferedImage.TYPE_INT_RGB, Resampling.getDestinationType(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB)));
+    }
+
+    @Test
+    public void testTransparentPixelsDoNotDarkenEdges() {
+        BufferedImage source = new BufferedImage(200, 200, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = source.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 100, 200);
+        g.dispose();
+
+        for (Resampling resampling : new Resampling[]{Resampling.PROGRESSIVE, Resampling.AREA_AVERAGE, Resampling.LANCZOS}) {
+            BufferedImage destination = new BufferedImage(25, 25, BufferedImage.TYPE_INT_ARGB);
+            resampling.resample(source, destination);
+            int edge = destination.getRGB(12, 12);
+            Assert.assertEquals(resampling.name(), 0xFFFFFF, edge & 0xFFFFFF);
+        }
+    }
+
+    @Test
+    public void testSubImageIsResampledFromItsOwnPixels() {
+        BufferedImage source = new BufferedImage(300, 100, BufferedImage.TYPE_INT_RGB);
+        filled(source, Color.RED);
+        Graphics2D g = source.createGraphics();
+        g.setColor(Color.BLUE);
+        g.fillRect(100, 0, 100, 100);
+        g.dispose();
+
+        BufferedImage destination = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        Resampling.LANCZOS.resample(source.getSubimage(100, 0, 100, 100), destination);
+        Assert.assertEquals(0xFF0000FF, destination.getRGB(0, 0));
+        Assert.assertEquals(0xFF0000FF, destination.getRGB(9, 9));
+    }
+
+    @Test
+    public void testParallelMatchesSingleThreaded() throws Exception {
+        BufferedImage source = new BasicImageIOService().from(new FileInputStream(new File(this.getClass().getClassLoader().getResource("sample.jpg").getFile()))).getBufferedImage();
+
+        BufferedImage expected = new BufferedImage(150, 140, BufferedImage.TYPE_INT_RGB);
+        new ConvolutionResampler(Filter.LANCZOS3).resample(source, expected);
+
+        BufferedImage actual = new BufferedImage(150, 140, BufferedImage.TYPE_INT_RGB);
+        new ParallelResampler(Filter.LANCZOS3, new ForkJoinPool(4), 0).resample(source, actual);
+
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                Assert.assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testDefaultPoolIsShared() {
+        Assert.assertSame(ForkJoinPool.commonPool(), new ParallelResampler(Filter.LANCZOS3).getPool());
+    }
+
+    private BufferedImage filled(BufferedImage image, Color colour) {
+        Graphics2D g = image.createGraphics();
+        g.setColor(colour);
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import twigkit.frame.Image;
+
+import java.awt.*;
+import java.io.File;
+
+/**
+ * @author mr.olafsson
+ */
+public class TIFFDocumentTest {
+
+	private File getFile(String name) {
+		return new File(this.getClass().getClassLoader().getResource(name).getFile());
+	}
+
+	@Test
+	public void testPagesAndDimensions() throws Exception {
+		TIFFDocument document = TIFFDocument.open(getFile("multipage-sample.tif"));
+		try {
+			Assert.assertEquals(8, document.getPageCount());
+			Assert.assertEquals(1728, document.getWidth(7));
+			Assert.assertEquals(2261, document.getHeight(7));
+
+			// Random access in either direction on the same reader
+			Assert.assertEquals(2258, document.getPage(6).getHeight());
+			Assert.assertEquals(2267, document.getPage(1).getHeight());
+		} finally {
+			document.close();
+		}
+	}
+
+	@Test
+	public void testRegion() throws Exception {
+		TIFFDocument document = TIFFDocument.open(getFile("multipage-sample.tif"));
+		try {
+			Image region = document.getRegion(2, new Rectangle(100, 200, 400, 300), 2);
+			Assert.assertEquals(200, region.getWidth());
+			Assert.assertEquals(150, region.getHeight());
+
+			// Clipped to the page
+			region = document.getRegion(2, new Rectangle(1628, 2166, 400, 300), 1);
+			Assert.assertEquals(100, region.getWidth());
+			Assert.assertEquals(100, region.getHeight());
+		} finally {
+			document.close();
+		}
+	}
+
+	@Test
+	public void testIteratePages() throws Exception {
+		TIFFDocument document = TIFFDocument.open(getFile("Operations.tif"));
+		try {
+			int pages = 0;
+			for (Image page : document) {
+				Assert.assertEquals(document.getWidth(pages), page.getWidth());
+				pages++;
+			}
+			Assert.assertEquals(4, pages);
+		} finally {
+			document.close();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package twigkit.frame.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import twigkit.frame.BasicImageIOService;
+import twigkit.frame.Image;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author mr.olafsson
+ */
+public class TIFFThumbnailerTest {
+
+	@Test
+	public void testAllPages() throws Exception {
+		File file = new File(this.getClass().getClassLoader().getResource("multipage-sample.tif").getFile());
+		final Map<Integer, Image> thumbnails = new ConcurrentHashMap<Integer, Image>();
+
+		TIFFThumbnailer thumbnailer = new TIFFThumbnailer(new BasicImageIOService(), 3);
+		try {
+			int pages = thumbnailer.thumbnails(file, 100, 0, new TIFFThumbnailer.Listener() {
+				public void onThumbnail(int page, Image thumbnail) {
+					thumbnails.put(page, thumbnail);
+				}
+
+				public void onFailure(int page, Exception e) {
+					Assert.fail("Page " + page + " failed: " + e);
+				}
+			});
+
+			Assert.assertEquals(8, pages);
+			Assert.assertEquals(8, thumbnails.size());
+			for (Image thumbnail : thumbnails.values()) {
+				Assert.assertEquals(100, thumbnail.getWidth());
+			}
+		} finally {
+			thumbnailer.shutdown();
+		}
+	}
+}